@@ -0,0 +1,193 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.connector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.edit.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.poi.xwpf.usermodel.XWPFDocument;
+/**
+ * The corpus of benchmarks : documents of each format are generated from the same
+ * pseudo-random prose with the libraries Tika parses them with, so that the corpus is
+ * the same on every run without bundling binary files.
+ * @author laurent
+ */
+public class DriveBenchmarkCorpus{
+
+   /** Lines of a page, or rows of a spreadsheet page. */
+   public static final int LINES_PER_PAGE = 40;
+
+   private static final String[] WORDS = {"drive", "river", "index", "document", "quarter", "budget", "sales",
+      "meeting", "roadmap", "customer", "release", "search", "elastic", "folder", "report", "the", "of", "and",
+      "a", "to", "in", "for", "with", "on", "is", "by", "été", "größe", "naïve"};
+
+   /** A generated document. */
+   public static class Document{
+      private final String name;
+      private final String contentType;
+      private final byte[] bytes;
+
+      Document(String name, String contentType, byte[] bytes){
+         this.name = name;
+         this.contentType = contentType;
+         this.bytes = bytes;
+      }
+
+      public String getName(){
+         return name;
+      }
+      public String getContentType(){
+         return contentType;
+      }
+      public byte[] getBytes(){
+         return bytes;
+      }
+   }
+
+   /**
+    * Generate a document.
+    * @param format One of pdf, docx, xlsx, xls, html or txt
+    * @param pages The number of pages of document
+    * @return The document with its Drive mime type
+    */
+   public static Document generate(String format, int pages) throws IOException{
+      String name = "corpus-" + pages + "." + format;
+      Random random = new Random(pages);
+      if ("pdf".equals(format)){
+         return new Document(name, DriveExportFormats.APPLICATION_PDF, pdf(random, pages));
+      } else if ("docx".equals(format)){
+         return new Document(name, "application/vnd.openxmlformats-officedocument.wordprocessingml.document",
+               docx(random, pages));
+      } else if ("xlsx".equals(format)){
+         return new Document(name, DriveExportFormats.APPLICATION_XLSX, spreadsheet(new XSSFWorkbook(), random, pages));
+      } else if ("xls".equals(format)){
+         return new Document(name, "application/vnd.ms-excel", spreadsheet(new HSSFWorkbook(), random, pages));
+      } else if ("html".equals(format)){
+         return new Document(name, "text/html", html(random, pages).getBytes("UTF-8"));
+      } else if ("txt".equals(format)){
+         return new Document(name, DriveExportFormats.TEXT_PLAIN, text(random, pages * LINES_PER_PAGE).getBytes("UTF-8"));
+      }
+      throw new IllegalArgumentException("Unknown corpus format " + format);
+   }
+
+   /** @return A content held in memory, as built by downloads */
+   public static DriveContent inMemory(byte[] bytes){
+      return new DriveContent(bytes);
+   }
+
+   /** @return Prose of given length */
+   public static String text(int length){
+      Random random = new Random(length);
+      StringBuilder text = new StringBuilder(length + 16);
+      while (text.length() < length){
+         text.append(line(random)).append('\n');
+      }
+      return text.substring(0, length);
+   }
+
+   private static String text(Random random, int lines){
+      StringBuilder text = new StringBuilder();
+      for (int i = 0; i < lines; i++){
+         text.append(line(random)).append('\n');
+      }
+      return text.toString();
+   }
+
+   /** A line of about 80 characters. */
+   private static String line(Random random){
+      StringBuilder line = new StringBuilder(96);
+      while (line.length() < 80){
+         line.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+      }
+      return line.toString().trim();
+   }
+
+   private static byte[] pdf(Random random, int pages) throws IOException{
+      PDDocument document = new PDDocument();
+      try{
+         for (int p = 0; p < pages; p++){
+            PDPage page = new PDPage();
+            document.addPage(page);
+            PDPageContentStream stream = new PDPageContentStream(document, page);
+            stream.beginText();
+            stream.setFont(PDType1Font.HELVETICA, 10);
+            stream.moveTextPositionByAmount(40, 750);
+            for (int i = 0; i < LINES_PER_PAGE; i++){
+               // Standard fonts only cover Latin-1, which accented words fit in.
+               stream.drawString(line(random));
+               stream.moveTextPositionByAmount(0, -17);
+            }
+            stream.endText();
+            stream.close();
+         }
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         document.save(bytes);
+         return bytes.toByteArray();
+      } catch (Exception e){
+         throw new IOException("Failed to generate PDF", e);
+      } finally {
+         document.close();
+      }
+   }
+
+   private static byte[] docx(Random random, int pages) throws IOException{
+      XWPFDocument document = new XWPFDocument();
+      for (int i = 0; i < pages * LINES_PER_PAGE; i++){
+         document.createParagraph().createRun().setText(line(random));
+      }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      document.write(bytes);
+      return bytes.toByteArray();
+   }
+
+   private static byte[] spreadsheet(Workbook workbook, Random random, int pages) throws IOException{
+      Sheet sheet = workbook.createSheet("Figures");
+      for (int i = 0; i < pages * LINES_PER_PAGE; i++){
+         Row row = sheet.createRow(i);
+         row.createCell(0).setCellValue(WORDS[random.nextInt(WORDS.length)]);
+         row.createCell(1).setCellValue(line(random));
+         row.createCell(2).setCellValue(random.nextInt(100000) / 100.0);
+      }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      workbook.write(bytes);
+      return bytes.toByteArray();
+   }
+
+   private static String html(Random random, int pages){
+      StringBuilder html = new StringBuilder("<html><head><title>Corpus</title>"
+            + "<meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\"></head><body>");
+      for (int p = 0; p < pages; p++){
+         html.append("<h2>Page ").append(p).append("</h2>");
+         for (int i = 0; i < LINES_PER_PAGE; i++){
+            html.append("<p class=\"line\">").append(line(random)).append("</p>");
+         }
+      }
+      return html.append("</body></html>").toString();
+   }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.connector;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+/**
+ * Benchmarks of folder scope resolution on synthetic folder trees : initial loading of the
+ * whole graph, checking a folder is in scope as done for every change, and moving a subtree
+ * out of scope and back as done when a folder change is read.
+ * @author laurent
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DriveFolderTreeBenchmark{
+
+   static final int LOOKUPS = 1024;
+   static final String ROOT = "root";
+
+   @Param({"100000"})
+   public int folders;
+
+   /** Children per folder : 10 gives a deep tree, 1000 a wide one. */
+   @Param({"10", "1000"})
+   public int fanout;
+
+   private Map<String, List<String>> graph;
+   private DriveFolderTree tree;
+   private String[] lookups;
+   private String moved;
+   private List<String> movedParents;
+
+   @Setup
+   public void setUp(){
+      // Folder i is a child of folder (i - 1) / fanout, folder 0 being the scanned root.
+      graph = new HashMap<String, List<String>>(folders * 2);
+      for (int i = 1; i < folders; i++){
+         graph.put(folderId(i), Collections.singletonList(folderId((i - 1) / fanout)));
+      }
+      // A third of folders live out of scope, under another root.
+      for (int i = 0; i < folders / 2; i++){
+         graph.put("other" + i, Collections.singletonList(i == 0 ? "elsewhere" : "other" + ((i - 1) / fanout)));
+      }
+      tree = new DriveFolderTree(ROOT);
+      tree.putAll(graph);
+      
+      Random random = new Random(42);
+      lookups = new String[LOOKUPS];
+      for (int i = 0; i < LOOKUPS; i++){
+         lookups[i] = random.nextBoolean() ? folderId(random.nextInt(folders)) : "other" + random.nextInt(folders / 2);
+      }
+      // Move the first child of root, carrying about 1/fanout of scanned folders.
+      moved = folderId(1);
+      movedParents = graph.get(moved);
+   }
+
+   @Benchmark
+   public DriveFolderTree putAll(){
+      DriveFolderTree loaded = new DriveFolderTree(ROOT);
+      loaded.putAll(graph);
+      return loaded;
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(LOOKUPS)
+   public int isInScope(){
+      int scoped = 0;
+      for (String folderId : lookups){
+         if (tree.isInScope(folderId)){
+            scoped++;
+         }
+      }
+      return scoped;
+   }
+
+   @Benchmark
+   public int moveSubtree(){
+      tree.update(moved, Collections.singletonList("elsewhere"));
+      int scoped = tree.scopeSize();
+      tree.update(moved, movedParents);
+      return scoped;
+   }
+
+   private static String folderId(int i){
+      return i == 0 ? ROOT : "folder" + i;
+   }
+}
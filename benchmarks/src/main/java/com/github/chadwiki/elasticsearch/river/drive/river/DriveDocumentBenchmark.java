@@ -0,0 +1,83 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.river;
+
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.chadwiki.elasticsearch.river.drive.connector.DriveBenchmarkCorpus;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.File;
+/**
+ * Benchmarks of JSON documents building, done for every indexed file : complete documents
+ * holding extracted text of different lengths, and metadata-only partial documents.
+ * @author laurent
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DriveDocumentBenchmark{
+
+   /** Length of extracted text, 100000 being the default extraction cap. */
+   @Param({"1000", "100000"})
+   public int textLength;
+
+   private File driveFile;
+   private String text;
+
+   @Setup
+   public void setUp(){
+      driveFile = new File();
+      driveFile.setId("0B4pXhLlSgRvBZGxNbHBrUkVwbDQ");
+      driveFile.setTitle("Quarterly report - Sales & Marketing.docx");
+      driveFile.setMimeType("application/vnd.openxmlformats-officedocument.wordprocessingml.document");
+      driveFile.setCreatedDate(new DateTime(1380000000000L));
+      driveFile.setModifiedDate(new DateTime(1390000000000L));
+      driveFile.setAlternateLink("https://docs.google.com/file/d/0B4pXhLlSgRvBZGxNbHBrUkVwbDQ/edit");
+      driveFile.setDescription("Sales figures and marketing plan for the \"next\" quarter");
+      text = DriveBenchmarkCorpus.text(textLength);
+   }
+
+   @Benchmark
+   public int buildDriveDocument() throws Exception{
+      XContentBuilder document = DriveRiverUtil.buildDriveDocument(driveFile, driveFile.getMimeType(), text,
+            "d41d8cd98f00b204e9800998ecf8427e", DriveContentExtractor.STATUS_OK);
+      return document.bytes().length();
+   }
+
+   @Benchmark
+   public int buildDriveMetadataDocument() throws Exception{
+      return DriveRiverUtil.buildDriveMetadataDocument(driveFile).bytes().length();
+   }
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.river;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.chadwiki.elasticsearch.river.drive.connector.DriveBenchmarkCorpus;
+import com.github.chadwiki.elasticsearch.river.drive.connector.DriveContent;
+import com.github.chadwiki.elasticsearch.river.drive.connector.DriveExportFormats;
+/**
+ * Benchmarks of text extraction on the benchmark corpus : Tika parsing of PDF, Office and
+ * HTML documents, and direct decoding of text contents, as done by extraction workers.
+ * @author laurent
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DriveExtractionBenchmark{
+
+   @Param({"pdf", "docx", "xlsx", "xls", "html", "txt"})
+   public String format;
+
+   /** Size of each document in pages of 40 lines, or in 40 rows for spreadsheets. */
+   @Param({"1", "20"})
+   public int size;
+
+   private DriveContentExtractor extractor;
+   private DriveBenchmarkCorpus.Document document;
+   private DriveContent content;
+
+   @Setup(Level.Trial)
+   public void setUp() throws Exception{
+      extractor = new DriveContentExtractor(100000, 100 * 1024 * 1024, 60000, 
+            Runtime.getRuntime().availableProcessors());
+      document = DriveBenchmarkCorpus.generate(format, size);
+      content = DriveBenchmarkCorpus.inMemory(document.getBytes());
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown(){
+      extractor.close();
+   }
+
+   @Benchmark
+   public int extract() throws Exception{
+      DriveContentExtractor.Extraction extraction;
+      if (DriveExportFormats.isText(document.getContentType())){
+         extraction = extractor.decode(content, DriveContentExtractor.UTF_8);
+      } else {
+         extraction = extractor.parse(content, document.getContentType(), document.getName());
+      }
+      if (extraction.isSkipped()){
+         throw new IllegalStateException("Extraction of " + document.getName() + " ended with " + extraction.getStatus());
+      }
+      return extraction.getText().length();
+   }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.river;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+/**
+ * Benchmarks of title filtering, checked for every change read from Drive. Titles are
+ * checked against a compiled {@link DriveTitleFilter}, as the river does, and through
+ * {@link DriveRiverUtil#isIndexable(String, List, List)} which compiles rules on each call.
+ * @author laurent
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DriveTitleFilterBenchmark{
+
+   static final int TITLES = 1024;
+
+   private static final String[] NAMES = {"Budget", "Minutes", "Roadmap", "Invoice", "Report", "Draft",
+      "Contract", "Specification", "Meeting notes", "Planning", "Copy of Budget", "~lock.Report"};
+   private static final String[] EXTENSIONS = {".pdf", ".docx", ".doc", ".xlsx", ".pptx", ".txt", ".csv",
+      ".tmp", ".jpg", ".png", ".zip", ""};
+
+   /** Rule sets : none, a few extensions with excludes, or many rules as in a large deployment. */
+   @Param({"none", "extensions", "many"})
+   public String rules;
+
+   private List<String> includes;
+   private List<String> excludes;
+   private DriveTitleFilter filter;
+   private String[] titles;
+
+   @Setup
+   public void setUp(){
+      if ("none".equals(rules)){
+         includes = Collections.emptyList();
+         excludes = Collections.emptyList();
+      } else if ("extensions".equals(rules)){
+         includes = Arrays.asList("*.pdf", "*.doc", "*.docx", "*.xls*", "*.ppt*", "*.txt");
+         excludes = Arrays.asList("~*", "*.tmp", "Copy of *");
+      } else {
+         includes = new ArrayList<String>();
+         excludes = new ArrayList<String>();
+         for (int i = 0; i < 40; i++){
+            includes.add("Project " + i + " - *" + EXTENSIONS[i % EXTENSIONS.length]);
+         }
+         for (int i = 0; i < 10; i++){
+            excludes.add("*draft?" + i + "*");
+         }
+         excludes.add("~*");
+      }
+      filter = DriveTitleFilter.compile(includes, excludes);
+      
+      Random random = new Random(42);
+      titles = new String[TITLES];
+      for (int i = 0; i < TITLES; i++){
+         String prefix = random.nextInt(4) == 0 ? "Project " + random.nextInt(50) + " - " : "";
+         titles[i] = prefix + NAMES[random.nextInt(NAMES.length)] + " " + random.nextInt(2020)
+               + EXTENSIONS[random.nextInt(EXTENSIONS.length)];
+      }
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(TITLES)
+   public int compiledFilter(){
+      int indexable = 0;
+      for (String title : titles){
+         if (filter.isIndexable(title)){
+            indexable++;
+         }
+      }
+      return indexable;
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(TITLES)
+   @SuppressWarnings("deprecation")
+   public int utilIsIndexable(){
+      int indexable = 0;
+      for (String title : titles){
+         if (DriveRiverUtil.isIndexable(title, includes, excludes)){
+            indexable++;
+         }
+      }
+      return indexable;
+   }
+}
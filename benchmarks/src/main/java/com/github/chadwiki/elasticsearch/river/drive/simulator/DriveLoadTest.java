@@ -0,0 +1,221 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.simulator;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.io.FileSystemUtils;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+import org.elasticsearch.node.internal.InternalNode;
+
+import com.github.chadwiki.elasticsearch.river.drive.river.DriveRiver;
+import com.github.chadwiki.elasticsearch.river.drive.river.DriveRiverRegistry;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+/**
+ * End-to-end ingestion load test : a river running on an embedded Elasticsearch node indexes
+ * the changes of a {@link DriveSimulator}, and the number of documents indexed per second is
+ * measured until every change is indexed. Options are given as <code>key=value</code> arguments :
+ * <ul>
+ * <li><code>changes</code> : number of changes to index (default 1000000)</li>
+ * <li><code>files</code> : number of distinct files, later changes updating them (default as many as changes)</li>
+ * <li><code>folders</code>, <code>content_size</code> : shape of drive (default 1000 folders, 2048 bytes contents)</li>
+ * <li><code>html_ratio</code>, <code>native_ratio</code> : share of HTML files and of exported Google documents
+ *    (default 0.2 and 0.1, others being plain text)</li>
+ * <li><code>delete_ratio</code>, <code>missing_file_ratio</code> : share of deleted files and of changes listed
+ *    without their file (default 0)</li>
+ * <li><code>latency_ms</code>, <code>throttle_ratio</code>, <code>error_ratio</code> : faults injected into
+ *    Drive calls (default 0)</li>
+ * <li><code>mode</code> : <code>changes</code> for indexing changes after an initial crawl of an empty drive,
+ *    <code>crawl</code> for indexing the drive through initial crawl (default changes)</li>
+ * <li><code>shards</code>, <code>timeout</code> : shards of index and maximum duration in seconds (default 1 and 3600)</li>
+ * <li><code>river.*</code>, <code>index.*</code> : river feed and index settings, like <code>river.download_workers=8</code>
+ *    or <code>index.bulk_size=500</code></li>
+ * </ul>
+ * @author laurent
+ */
+public class DriveLoadTest{
+
+   private static final String RIVER_NAME = "loadtest";
+   private static final String INDEX_NAME = "loadtest";
+   private static final long REPORT_INTERVAL_MILLIS = 5000;
+
+   public static void main(String[] args) throws Exception{
+      Map<String, String> options = new HashMap<String, String>();
+      for (String arg : args){
+         int equals = arg.indexOf('=');
+         if (equals <= 0){
+            System.err.println("Ignoring argument " + arg + ", expecting key=value");
+            continue;
+         }
+         options.put(arg.substring(0, equals), arg.substring(equals + 1));
+      }
+      BasicConfigurator.configure();
+      Logger.getRootLogger().setLevel(Level.toLevel(option(options, "log_level", "WARN")));
+      
+      int changes = Integer.parseInt(option(options, "changes", "1000000"));
+      DriveSimulatorCorpus corpus = new DriveSimulatorCorpus(changes,
+            Integer.parseInt(option(options, "files", String.valueOf(changes))),
+            Integer.parseInt(option(options, "folders", "1000")),
+            Integer.parseInt(option(options, "content_size", "2048")),
+            Double.parseDouble(option(options, "html_ratio", "0.2")),
+            Double.parseDouble(option(options, "native_ratio", "0.1")),
+            Double.parseDouble(option(options, "delete_ratio", "0")),
+            Double.parseDouble(option(options, "missing_file_ratio", "0")));
+      boolean crawl = "crawl".equals(option(options, "mode", "changes"));
+      long timeoutMillis = Long.parseLong(option(options, "timeout", "3600")) * 1000;
+      
+      DriveSimulator simulator = new DriveSimulator(corpus, Integer.parseInt(option(options, "simulator_threads", "32")));
+      simulator.setLatencyMillis(Long.parseLong(option(options, "latency_ms", "0")));
+      simulator.setThrottleRatio(Double.parseDouble(option(options, "throttle_ratio", "0")));
+      simulator.setErrorRatio(Double.parseDouble(option(options, "error_ratio", "0")));
+      
+      File dataDir = new File(System.getProperty("java.io.tmpdir"), "drive-loadtest-" + System.currentTimeMillis());
+      Node node = NodeBuilder.nodeBuilder().local(true).settings(ImmutableSettings.settingsBuilder()
+            .put("cluster.name", dataDir.getName())
+            .put("path.data", dataDir.getAbsolutePath())
+            .put("http.enabled", false)
+            .put("gateway.type", "none")
+            .put("index.number_of_shards", Integer.parseInt(option(options, "shards", "1")))
+            .put("index.number_of_replicas", 0)).node();
+      try{
+         Client client = node.client();
+         client.admin().cluster().prepareHealth().setWaitForYellowStatus().execute().actionGet();
+         
+         if (crawl){
+            corpus.publish();
+         }
+         long start = System.currentTimeMillis();
+         client.prepareIndex("_river", RIVER_NAME, "_meta").setSource(riverSettings(options, simulator)).execute().actionGet();
+         if (!crawl){
+            // Publish changes once river has recorded its position on the empty drive.
+            while (getLastChangesId(client) == null){
+               checkTimeout(start, timeoutMillis);
+               Thread.sleep(100);
+            }
+            corpus.publish();
+            start = System.currentTimeMillis();
+         }
+         System.out.println("Indexing " + corpus.getChanges() + " changes into " + corpus.getExpectedDocuments() 
+               + " documents, mode " + (crawl ? "crawl" : "changes"));
+         
+         long lastReport = start;
+         long lastCount = 0;
+         while (true){
+            Thread.sleep(500);
+            checkTimeout(start, timeoutMillis);
+            if (!client.admin().indices().prepareExists(INDEX_NAME).execute().actionGet().isExists()){
+               // River creates index on its first bulk.
+               continue;
+            }
+            client.admin().indices().prepareRefresh(INDEX_NAME).execute().actionGet();
+            long count = client.prepareCount(INDEX_NAME).execute().actionGet().getCount();
+            Long lastChangesId = getLastChangesId(client);
+            long now = System.currentTimeMillis();
+            if (now - lastReport >= REPORT_INTERVAL_MILLIS){
+               System.out.println(String.format("%6ds %10d documents %10.0f docs/s, at change %d", (now - start) / 1000, count,
+                     (count - lastCount) * 1000.0 / (now - lastReport), lastChangesId));
+               lastReport = now;
+               lastCount = count;
+            }
+            if (count == corpus.getExpectedDocuments() && lastChangesId != null && lastChangesId >= corpus.getLargestChangeId()){
+               break;
+            }
+         }
+         long elapsed = Math.max(1, System.currentTimeMillis() - start);
+         System.out.println(String.format("Indexed %d documents from %d changes in %.1f s : %.0f docs/s, %.0f changes/s",
+               corpus.getExpectedDocuments(), corpus.getChanges(), elapsed / 1000.0,
+               corpus.getExpectedDocuments() * 1000.0 / elapsed, corpus.getChanges() * 1000.0 / elapsed));
+      } finally {
+         // Stats tell where time went, or where ingestion got stuck.
+         System.out.println("Simulator served " + simulator.getStats());
+         printRiverStats(node);
+         node.close();
+         simulator.close();
+         FileSystemUtils.deleteRecursively(dataDir);
+      }
+   }
+
+   /** Build river settings, pointing the river at simulator with no request rate limit. */
+   private static XContentBuilder riverSettings(Map<String, String> options, DriveSimulator simulator) throws Exception{
+      Map<String, Object> feed = new HashMap<String, Object>();
+      feed.put("clientId", "simulated");
+      feed.put("clientSecret", "simulated");
+      feed.put("refreshToken", "simulated");
+      feed.put("folder", DriveSimulatorCorpus.ROOT_FOLDER_TITLE);
+      feed.put("update_rate", 1000);
+      feed.put("max_requests_per_second", 100000);
+      feed.put("api_root_url", simulator.getRootUrl());
+      feed.put("token_server_url", simulator.getTokenServerUrl());
+      Map<String, Object> index = new HashMap<String, Object>();
+      index.put("index", INDEX_NAME);
+      for (Map.Entry<String, String> option : options.entrySet()){
+         if (option.getKey().startsWith("river.")){
+            feed.put(option.getKey().substring("river.".length()), option.getValue());
+         } else if (option.getKey().startsWith("index.")){
+            index.put(option.getKey().substring("index.".length()), option.getValue());
+         }
+      }
+      return jsonBuilder().startObject()
+            .field("type", "google-drive")
+            .field("google-drive", feed)
+            .field("index", index)
+         .endObject();
+   }
+
+   /** @return The last change id recorded by river, null until initial crawl is done */
+   private static Long getLastChangesId(Client client){
+      GetResponse response = client.prepareGet("_river", RIVER_NAME, "_lastChangesId").setRealtime(true).execute().actionGet();
+      if (!response.isExists()){
+         return null;
+      }
+      Object lastChangesId = XContentMapValues.extractValue("google-drive._lastChangesId", response.getSourceAsMap());
+      return lastChangesId != null ? Long.valueOf(lastChangesId.toString()) : null;
+   }
+
+   private static void printRiverStats(Node node) throws Exception{
+      DriveRiver river = ((InternalNode)node).injector().getInstance(DriveRiverRegistry.class).get(RIVER_NAME);
+      if (river != null){
+         XContentBuilder builder = jsonBuilder().prettyPrint().startObject();
+         river.statsToXContent(builder);
+         System.out.println(builder.endObject().string());
+      }
+   }
+
+   private static void checkTimeout(long start, long timeoutMillis){
+      if (System.currentTimeMillis() - start > timeoutMillis){
+         throw new IllegalStateException("Load test did not complete within " + timeoutMillis / 1000 + " s");
+      }
+   }
+
+   private static String option(Map<String, String> options, String key, String defaultValue){
+      return options.containsKey(key) ? options.get(key) : defaultValue;
+   }
+}
@@ -0,0 +1,273 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.simulator;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+import com.github.chadwiki.elasticsearch.river.drive.connector.FakeDrive;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.drive.model.About;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import com.sun.net.httpserver.HttpExchange;
+/**
+ * A {@link FakeDrive} playing the part of Google Drive v2 for a {@link DriveSimulatorCorpus} :
+ * about, changes and files listings with pagination, files metadata lookups alone or within
+ * batches, and contents download or export. Point a connector at it with {@link #getRootUrl()}
+ * and {@link #getTokenServerUrl()}.
+ * <p>
+ * Faults can be injected into API calls and downloads : added latency, throttling answered
+ * the way Drive does (403 rateLimitExceeded or 429), and server errors (503).
+ * @author laurent
+ */
+public class DriveSimulator extends FakeDrive{
+
+   private static final ESLogger logger = Loggers.getLogger(DriveSimulator.class);
+
+   private static final String API_PATH = "/drive/v2/";
+   private static final String BATCH_BOUNDARY = "batch_simulator";
+   private static final Pattern BATCH_GET = Pattern.compile("^GET (\\S+)", Pattern.MULTILINE);
+   private static final int DEFAULT_PAGE_SIZE = 100;
+   private static final int MAX_PAGE_SIZE = 1000;
+
+   private final JsonFactory jsonFactory = new JacksonFactory();
+   private final DriveSimulatorCorpus corpus;
+
+   private volatile long latencyMillis = 0;
+   private volatile double throttleRatio = 0;
+   private volatile double errorRatio = 0;
+
+   private final AtomicLong requests = new AtomicLong();
+   private final AtomicLong changePages = new AtomicLong();
+   private final AtomicLong batches = new AtomicLong();
+   private final AtomicLong downloads = new AtomicLong();
+   private final AtomicLong bytesServed = new AtomicLong();
+   private final AtomicLong throttled = new AtomicLong();
+   private final AtomicLong errors = new AtomicLong();
+
+   /**
+    * Build and start a simulator listening on a free local port.
+    * @param corpus The drive to serve
+    * @param threads The number of threads serving requests
+    */
+   public DriveSimulator(DriveSimulatorCorpus corpus, int threads) throws IOException{
+      super(threads);
+      this.corpus = corpus;
+      corpus.setBaseUrl(getRootUrl());
+      logger.info("Drive simulator listening on {}", getRootUrl());
+   }
+
+   /** Set the latency added to each API call or download. */
+   public void setLatencyMillis(long latencyMillis){
+      this.latencyMillis = latencyMillis;
+   }
+
+   /** Set the share of API calls and downloads that are throttled. */
+   public void setThrottleRatio(double throttleRatio){
+      this.throttleRatio = throttleRatio;
+   }
+
+   /** Set the share of API calls and downloads that fail with a server error. */
+   public void setErrorRatio(double errorRatio){
+      this.errorRatio = errorRatio;
+   }
+
+   /** @return A summary of served requests and injected faults */
+   public String getStats(){
+      return requests.get() + " requests, " + changePages.get() + " changes pages, " + batches.get() + " batches, "
+            + downloads.get() + " downloads (" + bytesServed.get() / 1024 + " KB), " + throttled.get() + " throttled, "
+            + errors.get() + " errors";
+   }
+
+   @Override
+   protected void answer(HttpExchange exchange, String path, byte[] body) throws IOException{
+      try{
+         Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+         requests.incrementAndGet();
+         if (latencyMillis > 0){
+            TimeUnit.MILLISECONDS.sleep(latencyMillis);
+         }
+         if (injectFault(exchange)){
+            return;
+         }
+         if (path.equals("/batch")){
+            handleBatch(exchange, body);
+         } else if (path.equals(API_PATH + "about")){
+            sendJson(exchange, 200, jsonFactory.toString(new About().setLargestChangeId(corpus.getLargestChangeId())));
+         } else if (path.equals(API_PATH + "changes")){
+            handleChanges(exchange, params);
+         } else if (path.equals(API_PATH + "files")){
+            handleList(exchange, params);
+         } else if (path.startsWith(API_PATH + "files/")){
+            File file = corpus.get(path.substring((API_PATH + "files/").length()));
+            if (file == null){
+               sendError(exchange, 404, "notFound", "File not found");
+            } else {
+               sendJson(exchange, 200, jsonFactory.toString(file));
+            }
+         } else if (path.startsWith("/download/") || path.startsWith("/export/")){
+            handleDownload(exchange, path.substring(path.indexOf('/', 1) + 1), params);
+         } else {
+            sendError(exchange, 404, "notFound", "Unknown path " + path);
+         }
+      } catch (InterruptedException ie){
+         // Simulator is closing, request is left unanswered.
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   private void handleChanges(HttpExchange exchange, Map<String, String> params) throws IOException{
+      changePages.incrementAndGet();
+      long start = params.containsKey("pageToken") ? Long.parseLong(params.get("pageToken"))
+            : params.containsKey("startChangeId") ? Long.parseLong(params.get("startChangeId")) : 1;
+      int pageSize = pageSize(params);
+      List<Change> items = corpus.listChanges(start, pageSize);
+      ChangeList page = new ChangeList().setItems(items).setLargestChangeId(corpus.getLargestChangeId());
+      if (!items.isEmpty() && items.get(items.size() - 1).getId() < corpus.getLargestChangeId()){
+         page.setNextPageToken(String.valueOf(items.get(items.size() - 1).getId() + 1));
+      }
+      sendJson(exchange, 200, jsonFactory.toString(page));
+   }
+
+   private void handleList(HttpExchange exchange, Map<String, String> params) throws IOException{
+      int offset = params.containsKey("pageToken") ? Integer.parseInt(params.get("pageToken")) : 0;
+      int pageSize = pageSize(params);
+      List<File> positions = corpus.list(params.get("q"), offset, pageSize);
+      List<File> items = new ArrayList<File>(positions.size());
+      for (File file : positions){
+         if (file != null){
+            items.add(file);
+         }
+      }
+      FileList page = new FileList().setItems(items);
+      if (positions.size() == pageSize){
+         page.setNextPageToken(String.valueOf(offset + pageSize));
+      }
+      sendJson(exchange, 200, jsonFactory.toString(page));
+   }
+
+   private void handleDownload(HttpExchange exchange, String id, Map<String, String> params) throws IOException{
+      byte[] content = corpus.content(id, params.containsKey("rev") ? Integer.parseInt(params.get("rev")) : 0);
+      if (content == null){
+         sendError(exchange, 404, "notFound", "File not found");
+         return;
+      }
+      downloads.incrementAndGet();
+      bytesServed.addAndGet(content.length);
+      exchange.getResponseHeaders().set("Content-Type", corpus.contentType(id));
+      send(exchange, 200, content);
+   }
+
+   /** Answer each lookup of a batch in a multipart response, throttling some of them. */
+   private void handleBatch(HttpExchange exchange, byte[] body) throws IOException{
+      batches.incrementAndGet();
+      StringBuilder response = new StringBuilder();
+      Matcher matcher = BATCH_GET.matcher(new String(body, "UTF-8"));
+      int part = 0;
+      while (matcher.find()){
+         String url = matcher.group(1);
+         String path = url.replaceFirst("^https?://[^/]+", "");
+         int query = path.indexOf('?');
+         if (query >= 0){
+            path = path.substring(0, query);
+         }
+         String status;
+         String json;
+         File file = path.startsWith(API_PATH + "files/") ? corpus.get(path.substring((API_PATH + "files/").length())) : null;
+         if (Math.random() < throttleRatio){
+            throttled.incrementAndGet();
+            status = "403 Forbidden";
+            json = error(403, "rateLimitExceeded", "Rate Limit Exceeded");
+         } else if (file == null){
+            status = "404 Not Found";
+            json = error(404, "notFound", "File not found");
+         } else {
+            status = "200 OK";
+            json = jsonFactory.toString(file);
+         }
+         response.append("--").append(BATCH_BOUNDARY).append("\r\n")
+            .append("Content-Type: application/http\r\n")
+            .append("Content-ID: <response-").append(++part).append(">\r\n\r\n")
+            .append("HTTP/1.1 ").append(status).append("\r\n")
+            .append("Content-Type: ").append(JSON).append("\r\n\r\n")
+            .append(json).append("\r\n");
+      }
+      response.append("--").append(BATCH_BOUNDARY).append("--\r\n");
+      exchange.getResponseHeaders().set("Content-Type", "multipart/mixed; boundary=" + BATCH_BOUNDARY);
+      send(exchange, 200, response.toString().getBytes("UTF-8"));
+   }
+
+   /** Answer with an injected fault if drawn. */
+   private boolean injectFault(HttpExchange exchange) throws IOException{
+      double draw = Math.random();
+      if (draw < throttleRatio){
+         throttled.incrementAndGet();
+         // Drive throttles with either status, the 403 one telling its reason.
+         if (draw < throttleRatio / 2){
+            sendError(exchange, 429, "rateLimitExceeded", "Rate Limit Exceeded");
+         } else {
+            sendError(exchange, 403, "rateLimitExceeded", "Rate Limit Exceeded");
+         }
+         return true;
+      }
+      if (draw < throttleRatio + errorRatio){
+         errors.incrementAndGet();
+         sendError(exchange, 503, "backendError", "Backend Error");
+         return true;
+      }
+      return false;
+   }
+
+   private static int pageSize(Map<String, String> params){
+      if (!params.containsKey("maxResults")){
+         return DEFAULT_PAGE_SIZE;
+      }
+      return Math.max(1, Math.min(MAX_PAGE_SIZE, Integer.parseInt(params.get("maxResults"))));
+   }
+
+   private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException{
+      Map<String, String> params = new HashMap<String, String>();
+      if (query == null){
+         return params;
+      }
+      for (String pair : query.split("&")){
+         int equals = pair.indexOf('=');
+         if (equals > 0){
+            params.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"), URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+         }
+      }
+      return params;
+   }
+}
@@ -0,0 +1,366 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.simulator;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.github.chadwiki.elasticsearch.river.drive.connector.DriveConnector;
+import com.github.chadwiki.elasticsearch.river.drive.connector.DriveExportFormats;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.ParentReference;
+/**
+ * A synthetic drive whose content is computed rather than stored, so that millions of
+ * changes cost no memory. Change <i>j</i> (from 1) touches file <i>(j - 1) % files</i> :
+ * the first round of changes creates files and the following ones update them with a new
+ * content. Files are spread over a tree of folders under a root folder. Changes are
+ * published in one go, the drive looking empty until then so that a river records its
+ * position before any change happens.
+ * @author laurent
+ */
+public class DriveSimulatorCorpus{
+
+   /** Title of root folder, to be used as river folder. */
+   public static final String ROOT_FOLDER_TITLE = "Corpus";
+   static final String ROOT_FOLDER_ID = "corpus";
+   static final String DRIVE_ROOT_ID = "root";
+   static final String FOLDER_PREFIX = "folder-";
+   static final String FILE_PREFIX = "file-";
+   /** Folders have up to this number of subfolders. */
+   static final int FOLDER_FANOUT = 10;
+
+   private static final long BASE_DATE = 1380000000000L;
+   private static final String[] WORDS = {"drive", "river", "index", "document", "quarter", "budget", "sales",
+      "meeting", "roadmap", "customer", "release", "search", "elastic", "folder", "report", "the", "of", "and",
+      "a", "to", "in", "for", "with", "on", "is", "by"};
+
+   private final int changes;
+   private final int files;
+   private final int folders;
+   private final int contentSize;
+   private final double htmlRatio;
+   private final double nativeRatio;
+   private final double deleteRatio;
+   private final double missingFileRatio;
+   private String baseUrl = "http://localhost/";
+
+   private volatile int published = 0;
+
+   /**
+    * Build a new corpus.
+    * @param changes The number of changes, at least one
+    * @param files The number of distinct files, capped at the number of changes
+    * @param folders The number of folders files are spread over
+    * @param contentSize The size in bytes of file contents
+    * @param htmlRatio The share of HTML files, parsed by Tika
+    * @param nativeRatio The share of native Google documents, exported as text
+    * @param deleteRatio The share of files deleted by their last change
+    * @param missingFileRatio The share of changes listed without their file, to be retrieved by batches
+    */
+   public DriveSimulatorCorpus(int changes, int files, int folders, int contentSize, double htmlRatio,
+         double nativeRatio, double deleteRatio, double missingFileRatio){
+      this.changes = Math.max(1, changes);
+      this.files = Math.max(1, Math.min(files, this.changes));
+      this.folders = Math.max(1, folders);
+      this.contentSize = contentSize;
+      this.htmlRatio = htmlRatio;
+      this.nativeRatio = nativeRatio;
+      this.deleteRatio = deleteRatio;
+      this.missingFileRatio = missingFileRatio;
+   }
+
+   /** Set the url download and export links start with. */
+   void setBaseUrl(String baseUrl){
+      this.baseUrl = baseUrl;
+   }
+
+   /** Make all the changes visible. */
+   public void publish(){
+      published = changes;
+   }
+
+   /** @return The largest visible change id, 0 before publication */
+   public long getLargestChangeId(){
+      return published;
+   }
+
+   public int getChanges(){
+      return changes;
+   }
+
+   /** @return The number of documents expected in index once all changes are indexed */
+   public int getExpectedDocuments(){
+      int expected = 0;
+      for (int i = 0; i < files; i++){
+         if (!isDeleted(i)){
+            expected++;
+         }
+      }
+      return expected;
+   }
+
+   /**
+    * List visible changes.
+    * @param startChangeId The id of first change
+    * @param maxResults The maximum number of changes
+    * @return The changes, possibly empty
+    */
+   List<Change> listChanges(long startChangeId, int maxResults){
+      List<Change> result = new ArrayList<Change>();
+      for (long j = Math.max(1, startChangeId); j <= published && result.size() < maxResults; j++){
+         int index = (int)((j - 1) % files);
+         int revision = (int)((j - 1) / files);
+         Change change = new Change().setId(j).setFileId(FILE_PREFIX + index);
+         if (revision == lastRevision(index) && isDeleted(index)){
+            change.setDeleted(true);
+         } else {
+            change.setDeleted(false);
+            if (!isMissing(j)){
+               change.setFile(file(index, revision, j));
+            }
+         }
+         result.add(change);
+      }
+      return result;
+   }
+
+   /**
+    * Get a file or folder in its current state.
+    * @param id The id of file or folder
+    * @return The file, null if it does not exist
+    */
+   File get(String id){
+      if (ROOT_FOLDER_ID.equals(id)){
+         return folder(ROOT_FOLDER_ID, ROOT_FOLDER_TITLE, DRIVE_ROOT_ID);
+      }
+      int index = indexOf(id, FOLDER_PREFIX);
+      if (index >= 0 && index < folders){
+         return folder(index);
+      }
+      index = indexOf(id, FILE_PREFIX);
+      if (index >= 0 && index < files){
+         return currentFile(index);
+      }
+      return null;
+   }
+
+   /**
+    * List the files and folders matching one of the queries the river sends. Files that do
+    * not exist yet or anymore keep their position as null items, so that positions are stable.
+    * @param q The Drive query
+    * @param offset The position of first item
+    * @param maxResults The maximum number of items
+    * @return The items, fewer than maxResults once the end of listing is reached
+    */
+   List<File> list(String q, int offset, int maxResults){
+      List<File> result = new ArrayList<File>();
+      if (q == null){
+         q = "";
+      }
+      if (q.startsWith("title=")){
+         // Root folder lookup.
+         if (q.startsWith("title='" + ROOT_FOLDER_TITLE + "'") && offset == 0){
+            result.add(get(ROOT_FOLDER_ID));
+         }
+      } else if (q.startsWith("mimeType='" + DriveConnector.APPLICATION_VND_GOOGLE_APPS_FOLDER + "'")){
+         // All folders.
+         for (int k = offset - 1; k < folders && result.size() < maxResults; k++){
+            result.add(k < 0 ? get(ROOT_FOLDER_ID) : folder(k));
+         }
+      } else if (q.contains("' in parents")){
+         // Children of a folder : subfolders first, then files.
+         String parentId = q.substring(1, q.indexOf('\'', 1));
+         List<Integer> subfolders = subfolders(parentId);
+         int position = offset;
+         while (position < subfolders.size() && result.size() < maxResults){
+            result.add(folder(subfolders.get(position++)));
+         }
+         int folderIndex = indexOf(parentId, FOLDER_PREFIX);
+         if (folderIndex >= 0){
+            for (int i = folderIndex + (position - subfolders.size()) * folders; i < files && result.size() < maxResults; 
+                  i += folders){
+               result.add(currentFile(i));
+            }
+         }
+      } else {
+         // The whole drive, files first then folders.
+         for (int i = offset; i < files + folders && result.size() < maxResults; i++){
+            result.add(i < files ? currentFile(i) : folder(i - files));
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Generate the content of a file revision.
+    * @param id The id of file
+    * @param revision The revision of file
+    * @return The content bytes, null if file does not exist
+    */
+   byte[] content(String id, int revision){
+      int index = indexOf(id, FILE_PREFIX);
+      if (index < 0 || index >= files){
+         return null;
+      }
+      Random random = new Random(index * 31L + revision);
+      boolean html = kind(index) == Kind.HTML;
+      StringBuilder text = new StringBuilder(contentSize + 64);
+      if (html){
+         text.append("<html><head><title>").append(id).append("</title></head><body><p>");
+      }
+      while (text.length() < contentSize){
+         text.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(12) == 0 ? ".\n" : " ");
+      }
+      if (html){
+         text.append("</p></body></html>");
+      }
+      try{
+         return text.toString().getBytes("UTF-8");
+      } catch (UnsupportedEncodingException uee){
+         throw new IllegalStateException(uee);
+      }
+   }
+
+   /** @return The content type of file content */
+   String contentType(String id){
+      int index = indexOf(id, FILE_PREFIX);
+      return index >= 0 && kind(index) == Kind.HTML ? "text/html" : DriveExportFormats.TEXT_PLAIN;
+   }
+
+   private enum Kind { TEXT, HTML, NATIVE }
+
+   /** File kinds are spread evenly using a hash of file index. */
+   private Kind kind(int index){
+      double draw = spread(index, 7);
+      if (draw < nativeRatio){
+         return Kind.NATIVE;
+      }
+      return draw < nativeRatio + htmlRatio ? Kind.HTML : Kind.TEXT;
+   }
+
+   private boolean isDeleted(int index){
+      return spread(index, 13) < deleteRatio;
+   }
+
+   private boolean isMissing(long changeId){
+      return spread(changeId, 17) < missingFileRatio;
+   }
+
+   /** A pseudo-random number in [0, 1) that only depends on its inputs. */
+   private static double spread(long value, int salt){
+      long hash = (value + salt) * 0x9E3779B97F4A7C15L;
+      hash ^= hash >>> 29;
+      hash *= 0xBF58476D1CE4E5B9L;
+      hash ^= hash >>> 32;
+      return (hash >>> 11) / (double)(1L << 53);
+   }
+
+   /** @return The revision of last change of a file */
+   private int lastRevision(int index){
+      return (changes - 1 - index) / files;
+   }
+
+   /** @return The file in its latest visible revision, null if not created yet or deleted */
+   private File currentFile(int index){
+      if (index >= published){
+         return null;
+      }
+      int revision = (published - 1 - index) / files;
+      if (revision == lastRevision(index) && isDeleted(index)){
+         return null;
+      }
+      return file(index, revision, (long)revision * files + index + 1);
+   }
+
+   private File file(int index, int revision, long changeId){
+      String id = FILE_PREFIX + index;
+      File file = new File()
+            .setId(id)
+            .setTitle("Document " + index + (kind(index) == Kind.HTML ? ".html" : kind(index) == Kind.TEXT ? ".txt" : ""))
+            .setParents(Arrays.asList(new ParentReference().setId(FOLDER_PREFIX + (index % folders))))
+            .setCreatedDate(new DateTime(BASE_DATE + index * 1000L))
+            .setModifiedDate(new DateTime(BASE_DATE + changeId * 1000L))
+            .setAlternateLink(baseUrl + "file/d/" + id + "/edit")
+            .setDescription("Synthetic document " + index + " revision " + revision)
+            .setLabels(new File.Labels().setTrashed(false));
+      if (kind(index) == Kind.NATIVE){
+         file.setMimeType(DriveConnector.APPLICATION_VND_GOOGLE_APPS_DOCUMENT)
+            .setExportLinks(Collections.singletonMap(DriveExportFormats.TEXT_PLAIN,
+                  baseUrl + "export/" + id + "?rev=" + revision));
+      } else {
+         file.setMimeType(contentType(id))
+            .setDownloadUrl(baseUrl + "download/" + id + "?rev=" + revision)
+            .setMd5Checksum(String.format("%016x%016x", (long)index, (long)revision))
+            .setFileSize((long)contentSize);
+      }
+      return file;
+   }
+
+   private File folder(int k){
+      String parentId = k < FOLDER_FANOUT ? ROOT_FOLDER_ID : FOLDER_PREFIX + (k / FOLDER_FANOUT - 1);
+      return folder(FOLDER_PREFIX + k, "Folder " + k, parentId);
+   }
+
+   private File folder(String id, String title, String parentId){
+      return new File()
+            .setId(id)
+            .setTitle(title)
+            .setMimeType(DriveConnector.APPLICATION_VND_GOOGLE_APPS_FOLDER)
+            .setParents(Arrays.asList(new ParentReference().setId(parentId)))
+            .setCreatedDate(new DateTime(BASE_DATE))
+            .setModifiedDate(new DateTime(BASE_DATE))
+            .setLabels(new File.Labels().setTrashed(false));
+   }
+
+   /** Subfolder k of folder p is folder (p + 1) * fanout + k, those of root folder are the first ones. */
+   private List<Integer> subfolders(String parentId){
+      int first;
+      if (ROOT_FOLDER_ID.equals(parentId)){
+         first = 0;
+      } else {
+         int parent = indexOf(parentId, FOLDER_PREFIX);
+         if (parent < 0){
+            return Collections.emptyList();
+         }
+         first = (parent + 1) * FOLDER_FANOUT;
+      }
+      List<Integer> result = new ArrayList<Integer>();
+      for (int k = first; k < Math.min(folders, first + FOLDER_FANOUT); k++){
+         result.add(k);
+      }
+      return result;
+   }
+
+   private static int indexOf(String id, String prefix){
+      if (id == null || !id.startsWith(prefix)){
+         return -1;
+      }
+      try{
+         return Integer.parseInt(id.substring(prefix.length()));
+      } catch (NumberFormatException nfe){
+         return -1;
+      }
+   }
+}
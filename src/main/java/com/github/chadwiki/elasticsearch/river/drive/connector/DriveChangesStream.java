@@ -0,0 +1,169 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.connector;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.drive.Drive.Changes;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
+/**
+ * A stream of Google Drive changes pages. Pages are fetched one at a time and the next one
+ * is prefetched on the connector's prefetching threads while caller is processing the current
+ * one, so that memory usage is bounded by page size and not by the number of pending changes.
+ * @author laurent
+ */
+public class DriveChangesStream implements Closeable{
+
+   private static final ESLogger logger = Loggers.getLogger(DriveChangesStream.class);
+
+   private final DriveConnector connector;
+   private final Changes.List request;
+   private final ExecutorService prefetcher;
+
+   private Future<ChangeList> nextPage;
+   private long largestChangesId = -1;
+   private long lastReadChangeId = -1;
+
+   DriveChangesStream(DriveConnector connector, Changes.List request, ExecutorService prefetcher){
+      this.connector = connector;
+      this.request = request;
+      this.prefetcher = prefetcher;
+      this.nextPage = prefetch();
+   }
+
+   /** @return true if another page of changes is available. */
+   public boolean hasNext(){
+      return nextPage != null;
+   }
+
+   /**
+    * Retrieve next page of changes, filtered on the scanned folders. The following page
+    * fetch is started before returning.
+    * @return A page of changes wrapped into a DriveChanges object
+    */
+   public DriveChanges next() throws IOException{
+      if (nextPage == null){
+         throw new NoSuchElementException("No more changes pages");
+      }
+      ChangeList changes = awaitPage();
+
+      // Start fetching the following page before processing this one.
+      request.setPageToken(changes.getNextPageToken());
+      if (request.getPageToken() != null && request.getPageToken().length() > 0){
+         nextPage = prefetch();
+      } else {
+         nextPage = null;
+      }
+
+      if (logger.isDebugEnabled()){
+         logger.debug("Found {} items in this changes page", changes.getItems().size());
+         logger.debug("  largest changes id is {}", changes.getLargestChangeId());
+      }
+      if (changes.getLargestChangeId() > largestChangesId){
+         largestChangesId = changes.getLargestChangeId();
+      }
+      for (Change change : changes.getItems()){
+         lastReadChangeId = Math.max(lastReadChangeId, change.getId());
+      }
+      if (nextPage == null){
+         // Last page has been read, we're up to date with the whole feed.
+         lastReadChangeId = Math.max(lastReadChangeId, largestChangesId);
+      }
+      // Keep folders tree up-to-date, then filter change based on their parent folder.
+      connector.resolveFolders(changes.getItems());
+      List<Change> result = new ArrayList<Change>();
+      for (Change change : changes.getItems()){
+         connector.applyFolderChange(change);
+         if (connector.isChangeInValidSubfolder(change)){
+            result.add(change);
+         }
+      }
+      return new DriveChanges(changes.getLargestChangeId(), result);
+   }
+
+   /** @return The largest changes id seen so far on the drive, -1 if no page was read. */
+   public long getLargestChangeId(){
+      return largestChangesId;
+   }
+
+   /**
+    * @return The id of last change returned by this stream, whether it's been filtered out or not ;
+    *    the largest change id once the last page is read, -1 if no page was read.
+    */
+   public long getLastReadChangeId(){
+      return lastReadChangeId;
+   }
+
+   @Override
+   public void close(){
+      if (nextPage != null){
+         nextPage.cancel(true);
+         nextPage = null;
+      }
+   }
+
+   /** Start fetching the page designated by current request state. */
+   private Future<ChangeList> prefetch(){
+      return prefetcher.submit(new Callable<ChangeList>(){
+         @Override
+         public ChangeList call() throws Exception{
+            // Throttled or failed pages are retried alone.
+            ChangeList page = connector.execute(request);
+            connector.completeChanges(page.getItems());
+            return page;
+         }
+      });
+   }
+
+   /** Wait for the pending page, unwrapping fetch failures. */
+   private ChangeList awaitPage() throws IOException{
+      try{
+         return nextPage.get();
+      } catch (InterruptedException ie){
+         Thread.currentThread().interrupt();
+         close();
+         throw new IOException("Interrupted while waiting for changes page");
+      } catch (ExecutionException ee){
+         close();
+         Throwable cause = ee.getCause();
+         if (cause instanceof HttpResponseException && ((HttpResponseException)cause).getStatusCode() == 401){
+            logger.error("Authorization exception while accessing Google Drive");
+            throw (HttpResponseException)cause;
+         }
+         logger.error("An error occurred while processing changes page: " + cause);
+         if (cause instanceof IOException){
+            throw (IOException)cause;
+         }
+         throw new IOException(cause);
+      }
+   }
+}
@@ -0,0 +1,55 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.connector;
+/**
+ * A notification channel through which Google Drive pushes changes notifications
+ * to a web hook address.
+ * @author laurent
+ */
+public class DriveChannel{
+
+   private final String id;
+   private final String resourceId;
+   private final String token;
+   private final long expiration;
+
+   public DriveChannel(String id, String resourceId, String token, long expiration){
+      this.id = id;
+      this.resourceId = resourceId;
+      this.token = token;
+      this.expiration = expiration;
+   }
+
+   /** @return The channel id, sent back with each notification */
+   public String getId(){
+      return id;
+   }
+   /** @return The id of the watched resource, needed for stopping channel */
+   public String getResourceId(){
+      return resourceId;
+   }
+   /** @return The secret token sent back with each notification */
+   public String getToken(){
+      return token;
+   }
+   /** @return The expiration time of channel in milliseconds since epoch */
+   public long getExpiration(){
+      return expiration;
+   }
+}
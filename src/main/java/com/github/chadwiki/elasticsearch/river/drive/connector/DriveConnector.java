@@ -18,35 +18,60 @@
  */
 package com.github.chadwiki.elasticsearch.river.drive.connector;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.FileNotFoundException;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+
+import javax.net.ssl.SSLException;
 
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.util.concurrent.MoreExecutors;
 
 import com.google.api.client.auth.oauth2.TokenResponse;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
 import com.google.api.client.googleapis.auth.oauth2.GoogleRefreshTokenRequest;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.client.json.GenericJson;
 import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonObjectParser;
+import com.google.api.client.json.JsonParser;
+import com.google.api.client.json.JsonToken;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveRequest;
 import com.google.api.services.drive.Drive.Changes;
 import com.google.api.services.drive.Drive.Files;
 import com.google.api.services.drive.model.Change;
-import com.google.api.services.drive.model.ChangeList;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.FileList;
 import com.google.api.services.drive.model.ParentReference;
@@ -66,12 +91,38 @@ public class DriveConnector{
    /** */
    public static final String APPLICATION_VND_GOOGLE_APPS_SPREADSHEET = "application/vnd.google-apps.spreadsheet";
    
+   /** The file fields read by the river, requested on every files or changes listing. */
+   public static final String DEFAULT_FILE_FIELDS = "id,title,mimeType,parents/id,downloadUrl,exportLinks,"
+         + "createdDate,modifiedDate,description,alternateLink,labels/trashed,md5Checksum,fileSize";
+   
+   /** The maximum number of calls Drive accepts within a single batch request. */
+   public static final int MAX_BATCH_SIZE = 100;
+   
+   private static final long INITIAL_BACKOFF_MILLIS = 500;
+   private static final long MAX_BACKOFF_MILLIS = 64 * 1000;
+   
+   /** Transport and json factory are thread-safe, sharing them lets connectors share connections. */
+   private static final HttpTransport HTTP_TRANSPORT = new NetHttpTransport();
+   private static final JsonFactory JSON_FACTORY = new JacksonFactory();
+   
    private final String clientId;
    private final String clientSecret;
    private final String refreshToken;
    private String folderName;
    private Drive service;
-   private Set<String> subfoldersId;
+   private DriveFolderTree folderTree;
+   private long spillThreshold = 10 * 1024 * 1024;
+   private java.io.File tempDirectory;
+   private String fileFields = DEFAULT_FILE_FIELDS;
+   private DriveExportFormats exportFormats = DriveExportFormats.defaults();
+   private DriveRateLimiter rateLimiter = new DriveRateLimiter(10);
+   private int maxRetries = 5;
+   private String rootUrl;
+   private String tokenServerUrl;
+   private ExecutorService changesPrefetcher = MoreExecutors.sameThreadExecutor();
+   private final DriveConnectorStats stats = new DriveConnectorStats();
+   /** Ids of folders that could not be retrieved, not to ask for them again. */
+   private final Set<String> unresolvableFolderIds = Collections.synchronizedSet(new HashSet<String>());
    
    public DriveConnector(String clientId, String clientSecret, String refreshToken){
       this.clientId = clientId;
@@ -79,6 +130,97 @@ public class DriveConnector{
       this.refreshToken = refreshToken;
    }
    
+   /**
+    * Set the size beyond which downloaded contents are spilled to disk.
+    * @param spillThreshold Size in bytes
+    */
+   public void setSpillThreshold(long spillThreshold){
+      this.spillThreshold = spillThreshold;
+   }
+   
+   /**
+    * Set the directory where spilled contents are written.
+    * @param tempDirectory The directory, null for default temporary directory
+    */
+   public void setTempDirectory(java.io.File tempDirectory){
+      this.tempDirectory = tempDirectory;
+   }
+   
+   /**
+    * Set additional file fields to retrieve from Drive on top of {@link #DEFAULT_FILE_FIELDS}.
+    * @param extraFileFields Comma separated fields using Drive partial response syntax, 
+    *    '*' for retrieving complete resources, null for defaults only
+    */
+   public void setExtraFileFields(String extraFileFields){
+      if (extraFileFields == null || extraFileFields.trim().length() == 0){
+         this.fileFields = DEFAULT_FILE_FIELDS;
+      } else if ("*".equals(extraFileFields.trim())){
+         this.fileFields = null;
+      } else {
+         this.fileFields = DEFAULT_FILE_FIELDS + "," + extraFileFields.trim();
+      }
+   }
+   
+   /**
+    * Set the export formats to use for native Google files.
+    * @param exportFormats The export formats registry
+    */
+   public void setExportFormats(DriveExportFormats exportFormats){
+      this.exportFormats = exportFormats;
+   }
+   
+   /**
+    * Set the maximum rate of requests sent to Drive by this connector. Actual rate adapts
+    * itself below this maximum when Drive throttles requests.
+    * @param maxRequestsPerSecond Maximum number of requests per second, strictly positive
+    */
+   public void setMaxRequestsPerSecond(double maxRequestsPerSecond){
+      this.rateLimiter = new DriveRateLimiter(maxRequestsPerSecond);
+   }
+   
+   /**
+    * Set how many times a throttled or failed request is retried before giving up.
+    * @param maxRetries Maximum number of retries
+    */
+   public void setMaxRetries(int maxRetries){
+      this.maxRetries = maxRetries;
+   }
+   
+   /**
+    * Set the root url of Drive API, for pointing connector at a local Drive endpoint.
+    * @param rootUrl The url Drive API paths are relative to, null for Google servers
+    */
+   public void setRootUrl(String rootUrl){
+      this.rootUrl = rootUrl;
+   }
+   
+   /**
+    * Set the url of OAuth token server, for pointing connector at a local Drive endpoint.
+    * @param tokenServerUrl The url refresh tokens are exchanged at, null for Google servers
+    */
+   public void setTokenServerUrl(String tokenServerUrl){
+      this.tokenServerUrl = tokenServerUrl;
+   }
+   
+   /**
+    * Set the threads fetching next changes page while a page is being processed.
+    * @param changesPrefetcher An executor shared with other connectors, by default pages are
+    *    fetched in the thread reading the changes stream
+    */
+   public void setChangesPrefetcher(ExecutorService changesPrefetcher){
+      this.changesPrefetcher = changesPrefetcher;
+   }
+   
+   /** @return The counters of this connector */
+   public DriveConnectorStats getStats(){
+      return stats;
+   }
+   
+   /** @return The rate limiter shared by all the requests of this connector */
+   public DriveRateLimiter getRateLimiter(){
+      return rateLimiter;
+   }
+   
    /**
     * Actually connect to specified drive, exchanging refresh token for an up-to-date
     * set of credentials. If folder name specified, we also retrieve subfolders to scan. 
@@ -87,48 +229,82 @@ public class DriveConnector{
    public void connectUserDrive(String folderName) throws IOException{
       this.folderName = folderName;
       logger.info("Establishing connection to Google Drive");
-      // We'll use some transport and json factory for sure.
-      HttpTransport httpTransport = new NetHttpTransport();
-      JsonFactory jsonFactory = new JacksonFactory();
+      // Use the transport and json factory shared by all connectors of this node.
+      HttpTransport httpTransport = HTTP_TRANSPORT;
+      JsonFactory jsonFactory = JSON_FACTORY;
       
       TokenResponse tokenResponse = null;
       try{
-         tokenResponse = new GoogleRefreshTokenRequest(httpTransport, jsonFactory, refreshToken, clientId, clientSecret).execute();
+         GoogleRefreshTokenRequest tokenRequest = new GoogleRefreshTokenRequest(httpTransport, jsonFactory, 
+               refreshToken, clientId, clientSecret);
+         if (tokenServerUrl != null){
+            tokenRequest.setTokenServerUrl(new GenericUrl(tokenServerUrl));
+         }
+         tokenResponse = tokenRequest.execute();
       } catch (IOException ioe){
          logger.error("IOException while refreshing a token request", ioe);
       }
       
-      GoogleCredential credential = new GoogleCredential.Builder()
+      GoogleCredential.Builder credentialBuilder = new GoogleCredential.Builder()
          .setTransport(httpTransport)
          .setJsonFactory(jsonFactory)
-         .setClientSecrets(clientId, clientSecret).build()
+         .setClientSecrets(clientId, clientSecret);
+      if (tokenServerUrl != null){
+         credentialBuilder.setTokenServerEncodedUrl(tokenServerUrl);
+      }
+      GoogleCredential credential = credentialBuilder.build()
          .setFromTokenResponse(tokenResponse);
       //credential.setRefreshToken(refreshToken);
       
-      service = new Drive.Builder(httpTransport, jsonFactory, credential).build();
+      Drive.Builder serviceBuilder = new Drive.Builder(httpTransport, jsonFactory, credential);
+      if (rootUrl != null){
+         serviceBuilder.setRootUrl(rootUrl);
+      }
+      service = serviceBuilder.build();
       logger.info("Connection established.");
       
       if (folderName != null){
          logger.info("Retrieving scanned subfolders under folder {}, this may take a while...", folderName);
-         subfoldersId = getSubfoldersId(folderName);
+         folderTree = loadFolderTree(folderName);
          logger.info("Subfolders to scan found");
          if (logger.isDebugEnabled()){
-            logger.debug("Found {} valid subfolders under folder {}", subfoldersId.size(), folderName);
+            logger.debug("Found {} valid subfolders under folder {}", folderTree.scopeSize(), folderName);
          }
       }
    }
    
    /**
     * Query Google Drive for getting the last changes since the lastChangesId (may be null
-    * if this is the first time).
+    * if this is the first time). All the changes pages are read before returning, prefer
+    * {@link #streamChanges(Long)} when changes backlog may be large.
     * @param lastChangesId The identifier of last changes to start from 
     * @return A bunch of changes wrapped into a DriveChanges object
     */
    public DriveChanges getChanges(Long lastChangesId) throws IOException{
+      List<Change> result = new ArrayList<Change>();
+      DriveChangesStream stream = streamChanges(lastChangesId);
+      try{
+         while (stream.hasNext()){
+            result.addAll(stream.next().getChanges());
+         }
+      } finally {
+         stream.close();
+      }
+      // Wrap results and latest changes id.
+      return new DriveChanges(stream.getLargestChangeId(), result);
+   }
+   
+   /**
+    * Query Google Drive for getting the last changes since the lastChangesId (may be null
+    * if this is the first time), one page at a time. Next page is prefetched while the current
+    * one is processed. Returned stream should be closed once done.
+    * @param lastChangesId The identifier of last changes to start from 
+    * @return A stream of changes pages
+    */
+   public DriveChangesStream streamChanges(Long lastChangesId) throws IOException{
       if (logger.isDebugEnabled()){
          logger.debug("Getting drive changes since {}", lastChangesId);
       }
-      List<Change> result = new ArrayList<Change>();
       Changes.List request = null;
       
       try{
@@ -136,44 +312,97 @@ public class DriveConnector{
          request = service.changes().list();
       } catch (IOException ioe){
          logger.error("IOException while listing changes on drive service", ioe);
+         throw ioe;
       }
       // Filter last changes if provided.
       if (lastChangesId != null){
          request.setStartChangeId(lastChangesId + 1);
       }
-      
-      long largestChangesId = -1;
-      do{
-         try{
-           ChangeList changes = request.execute();
-           if (logger.isDebugEnabled()){
-              logger.debug("Found {} items in this changes page", changes.getItems().size());
-              logger.debug("  largest changes id is {}", changes.getLargestChangeId());
-           }
-           // Filter change based on their parent folder.
-           for (Change change : changes.getItems()){
-              if (isChangeInValidSubfolder(change)){
-                 result.add(change);
-              }
-           }
-           request.setPageToken(changes.getNextPageToken());
-           if (changes.getLargestChangeId() > largestChangesId){
-              largestChangesId = changes.getLargestChangeId();
-           }
-         } catch (HttpResponseException hre){
-            if (hre.getStatusCode() == 401){
-               logger.error("Authorization exception while accessing Google Drive");
-            }
-            throw hre;
-         } catch (IOException ioe) {
-           logger.error("An error occurred while processing changes page: " + ioe);
-           request.setPageToken(null);
-           throw ioe;
+      // Only retrieve the fields we're going to use.
+      if (fileFields != null){
+         request.setFields("items(id,fileId,deleted,file(" + fileFields + ")),largestChangeId,nextPageToken");
+      }
+      return new DriveChangesStream(this, request, changesPrefetcher);
+   }
+   
+   /**
+    * Retrieve the largest change id of the drive, that is the current position of changes feed.
+    * @return The largest change id
+    */
+   public long getLargestChangeId() throws IOException{
+      return execute(service.about().get().setFields("largestChangeId")).getLargestChangeId();
+   }
+   
+   /**
+    * List one page of the files that are not trashed, either directly within a folder or
+    * within the whole drive.
+    * @param folderId The id of folder to list files of, null for listing the whole drive
+    * @param pageToken The token of page to list, null for the first page
+    * @return A page of files, holding the token of next page if any
+    */
+   public FileList listFiles(String folderId, String pageToken) throws IOException{
+      Files.List request = service.files().list()
+            .setMaxResults(1000)
+            .setQ(folderId != null ? "'" + folderId + "' in parents and trashed=false" : "trashed=false");
+      if (fileFields != null){
+         request.setFields("items(" + fileFields + "),nextPageToken");
+      }
+      if (pageToken != null && pageToken.length() > 0){
+         request.setPageToken(pageToken);
+      }
+      return execute(request);
+   }
+   
+   /**
+    * Ask Google Drive to push notifications of changes to a web hook address. The watch
+    * method is not part of this Drive client version so it is called directly.
+    * @param channelId A unique id for the new channel
+    * @param address The https address notifications are sent to
+    * @param token A secret token Drive sends back with each notification
+    * @param ttlMillis The requested time to live of channel, Drive may grant a shorter one
+    * @return The opened channel
+    */
+   public DriveChannel watchChanges(String channelId, String address, String token, long ttlMillis) throws IOException{
+      final GenericJson body = new GenericJson();
+      body.put("id", channelId);
+      body.put("type", "web_hook");
+      body.put("address", address);
+      body.put("token", token);
+      body.put("expiration", System.currentTimeMillis() + ttlMillis);
+      GenericJson channel = execute(new DriveCall<GenericJson>(){
+         @Override
+         public GenericJson call() throws IOException{
+            return postJson("changes/watch", body).parseAs(GenericJson.class);
          }
-      } while (request.getPageToken() != null && request.getPageToken().length() > 0);
-      
-      // Wrap results and latest changes id.
-      return new DriveChanges(largestChangesId, result);
+      });
+      Object expiration = channel.get("expiration");
+      return new DriveChannel(channelId, (String)channel.get("resourceId"), token,
+            expiration != null ? Long.parseLong(expiration.toString()) : System.currentTimeMillis() + ttlMillis);
+   }
+   
+   /**
+    * Stop a notification channel so that Drive does not push notifications anymore.
+    * @param channel The channel to stop
+    */
+   public void stopChannel(DriveChannel channel) throws IOException{
+      final GenericJson body = new GenericJson();
+      body.put("id", channel.getId());
+      body.put("resourceId", channel.getResourceId());
+      execute(new DriveCall<Void>(){
+         @Override
+         public Void call() throws IOException{
+            postJson("channels/stop", body).disconnect();
+            return null;
+         }
+      });
+   }
+   
+   /** Post a JSON body to a Drive API path relative to service base url. */
+   private HttpResponse postJson(String path, GenericJson body) throws IOException{
+      HttpRequest request = service.getRequestFactory().buildPostRequest(
+            new GenericUrl(service.getBaseUrl() + path), new JsonHttpContent(service.getJsonFactory(), body));
+      request.setParser(new JsonObjectParser(service.getJsonFactory()));
+      return request.execute();
    }
    
    /**
@@ -182,54 +411,240 @@ public class DriveConnector{
     * @return This file bytes or null if something goes wrong.
     */
    public byte[] getContent(File driveFile){
+      DriveContent content = null;
+      try{
+         content = downloadContent(driveFile);
+         return content != null ? content.toByteArray() : null;
+      } catch (IOException e) {
+         e.printStackTrace();
+         return null;
+      } finally {
+         if (content != null){
+            content.close();
+         }
+      }
+   }
+   
+   /**
+    * Download Google Drive file content. Content is kept in memory up to the spill threshold
+    * and is written to a temporary file beyond, so that heap usage is bounded whatever the
+    * file size. Returned content should be closed once consumed.
+    * @param driveFile The file to download
+    * @return This file content or null if no suitable download url is found
+    */
+   public DriveContent downloadContent(File driveFile) throws IOException{
       if (logger.isDebugEnabled()){
          logger.debug("Downloading file content from {}", driveFile.getDownloadUrl());
       }
       // Find an appropriate download url depending on mime type.
       String downloadUrl = getDownloadUrl(driveFile);
+      if (downloadUrl == null){
+         return null;
+      }
       
-      if (downloadUrl != null){
-         InputStream is = null;
-         ByteArrayOutputStream bos = null;
-
-         try{
-            // Execute GET request on download url and retrieve input and output streams.
-            HttpResponse response = service.getRequestFactory()
-                  .buildGetRequest(new GenericUrl(downloadUrl))
-                  .execute();
-            is = response.getContent();
-            bos = new ByteArrayOutputStream();
-
-            byte[] buffer = new byte[4096];
-            int len = is.read(buffer);
-            while (len > 0) {
-               bos.write(buffer, 0, len);
-               len = is.read(buffer);
+      InputStream is = null;
+      OutputStream os = null;
+      java.io.File spillFile = null;
+      long start = System.currentTimeMillis();
+      try{
+         // Execute GET request on download url and retrieve input stream.
+         final String url = downloadUrl;
+         HttpResponse response = execute(new DriveCall<HttpResponse>(){
+            @Override
+            public HttpResponse call() throws IOException{
+               return service.getRequestFactory().buildGetRequest(new GenericUrl(url)).execute();
             }
-
-            // Flush and return result.
-            bos.flush();
-            return bos.toByteArray();
-         } catch (IOException e) {
-            e.printStackTrace();
-            return null;
-         } finally {
-            if (bos != null){
-               try{
-                  bos.close();
-               } catch (IOException e) {
-               }
+         });
+         is = response.getContent();
+         
+         // Buffer content in memory until threshold is reached.
+         ByteArrayOutputStream bos = new ByteArrayOutputStream();
+         byte[] buffer = new byte[8192];
+         int len = is.read(buffer);
+         while (len > 0 && bos.size() + len <= spillThreshold){
+            bos.write(buffer, 0, len);
+            len = is.read(buffer);
+         }
+         if (len <= 0){
+            stats.onDownload(bos.size(), System.currentTimeMillis() - start);
+            return new DriveContent(bos.toByteArray());
+         }
+         
+         // Threshold is exceeded, go on with a temporary file.
+         if (logger.isDebugEnabled()){
+            logger.debug("Spilling content of {} to disk", driveFile.getTitle());
+         }
+         spillFile = java.io.File.createTempFile("drive-", ".tmp", tempDirectory);
+         os = new BufferedOutputStream(new FileOutputStream(spillFile));
+         bos.writeTo(os);
+         bos = null;
+         while (len > 0){
+            os.write(buffer, 0, len);
+            len = is.read(buffer);
+         }
+         os.close();
+         os = null;
+         DriveContent content = new DriveContent(spillFile);
+         spillFile = null;
+         stats.onDownload(content.getLength(), System.currentTimeMillis() - start);
+         return content;
+      } finally {
+         if (os != null){
+            try{
+               os.close();
+            } catch (IOException e) {
             }
+         }
+         if (spillFile != null){
+            spillFile.delete();
+         }
+         if (is != null){
             try{
                is.close();
             } catch (IOException e) {
             }
          }
-      } else {
-         return null;
       }
    }
    
+   /**
+    * Retrieve metadata of many files, grouping up to {@link #MAX_BATCH_SIZE} lookups into
+    * a single batch request. Lookups failing within a batch are retried one by one ; files
+    * that do not exist anymore or cannot be retrieved are simply missing from result.
+    * @param fileIds The ids of files to retrieve
+    * @return The retrieved files by id
+    */
+   public Map<String, File> getFiles(Collection<String> fileIds) throws IOException{
+      final Map<String, File> result = new HashMap<String, File>();
+      final List<String> failedIds = new ArrayList<String>();
+      List<String> ids = new ArrayList<String>(new LinkedHashSet<String>(fileIds));
+      
+      for (int start = 0; start < ids.size(); start += MAX_BATCH_SIZE){
+         final List<String> chunk = ids.subList(start, Math.min(ids.size(), start + MAX_BATCH_SIZE));
+         if (logger.isDebugEnabled()){
+            logger.debug("Retrieving metadata of {} files within a batch", chunk.size());
+         }
+         // Batch is rebuilt on each attempt as executing it consumes queued requests.
+         execute(new DriveCall<Void>(){
+            @Override
+            public Void call() throws IOException{
+               BatchRequest batch = service.batch();
+               for (final String fileId : chunk){
+                  if (result.containsKey(fileId) || failedIds.contains(fileId)){
+                     continue;
+                  }
+                  prepareGetFile(fileId).queue(batch, new JsonBatchCallback<File>(){
+                     @Override
+                     public void onSuccess(File file, HttpHeaders responseHeaders){
+                        result.put(fileId, file);
+                     }
+                     @Override
+                     public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders){
+                        if (isThrottling(error.getCode(), error)){
+                           rateLimiter.onThrottle();
+                        }
+                        if (error.getCode() != 404){
+                           failedIds.add(fileId);
+                        }
+                     }
+                  });
+               }
+               if (batch.size() > 0){
+                  batch.execute();
+               }
+               return null;
+            }
+         }, chunk.size());
+      }
+      
+      // Retry failed lookups alone, with the usual backoff.
+      for (String fileId : failedIds){
+         try{
+            result.put(fileId, execute(prepareGetFile(fileId)));
+         } catch (HttpResponseException hre){
+            if (hre.getStatusCode() == 401){
+               throw hre;
+            }
+            logger.warn("Cannot retrieve metadata of file {}: {}", fileId, hre.getMessage());
+         }
+      }
+      return result;
+   }
+   
+   /**
+    * Retrieve the metadata missing from changes that are not deletions, using batch requests.
+    * @param changes The changes to complete
+    */
+   void completeChanges(List<Change> changes) throws IOException{
+      List<String> fileIds = new ArrayList<String>();
+      for (Change change : changes){
+         if (change.getFile() == null && !Boolean.TRUE.equals(change.getDeleted())){
+            fileIds.add(change.getFileId());
+         }
+      }
+      if (!fileIds.isEmpty()){
+         Map<String, File> files = getFiles(fileIds);
+         for (Change change : changes){
+            if (change.getFile() == null && files.containsKey(change.getFileId())){
+               change.setFile(files.get(change.getFileId()));
+            }
+         }
+      }
+   }
+   
+   /**
+    * Make sure the folder tree knows the parents of changed files, retrieving unknown
+    * ones and their own ancestors level by level using batch requests.
+    * @param changes The changes about to be filtered
+    */
+   void resolveFolders(List<Change> changes) throws IOException{
+      if (folderTree == null){
+         return;
+      }
+      Set<String> unknownIds = new HashSet<String>();
+      for (Change change : changes){
+         if (change.getFile() != null){
+            collectUnknownFolders(change.getFile(), unknownIds);
+         }
+      }
+      // Folders changed within these changes are going to be applied anyway.
+      for (Change change : changes){
+         unknownIds.remove(change.getFileId());
+      }
+      while (!unknownIds.isEmpty()){
+         Map<String, File> folders = getFiles(unknownIds);
+         Set<String> nextIds = new HashSet<String>();
+         for (String folderId : unknownIds){
+            File folder = folders.get(folderId);
+            if (folder == null || !APPLICATION_VND_GOOGLE_APPS_FOLDER.equals(folder.getMimeType())){
+               unresolvableFolderIds.add(folderId);
+            } else {
+               folderTree.update(folderId, getParentIds(folder));
+               collectUnknownFolders(folder, nextIds);
+            }
+         }
+         unknownIds = nextIds;
+      }
+   }
+   
+   /** Add the parents of a file that are neither known by folder tree nor unresolvable. */
+   private void collectUnknownFolders(File file, Set<String> unknownIds){
+      for (String parentId : getParentIds(file)){
+         if (!folderTree.contains(parentId) && !unresolvableFolderIds.contains(parentId)){
+            unknownIds.add(parentId);
+         }
+      }
+   }
+   
+   /** Prepare a request for getting the metadata of a file. */
+   private Files.Get prepareGetFile(String fileId) throws IOException{
+      Files.Get request = service.files().get(fileId);
+      if (fileFields != null){
+         request.setFields(fileFields);
+      }
+      return request;
+   }
+   
    /**
     * Retrieve the download url for a given drive file. Download url can vary
     * depending on file Mime type.
@@ -240,10 +655,12 @@ public class DriveConnector{
       String downloadUrl = null;
       if (driveFile.getDownloadUrl() != null && driveFile.getDownloadUrl().length() > 0){
          downloadUrl = driveFile.getDownloadUrl();
-      } else if (APPLICATION_VND_GOOGLE_APPS_DOCUMENT.equals(driveFile.getMimeType())){
-         downloadUrl = driveFile.getExportLinks().get("application/pdf");
-      } else if (APPLICATION_VND_GOOGLE_APPS_SPREADSHEET.equals(driveFile.getMimeType())){
-         downloadUrl = driveFile.getExportLinks().get("application/pdf");
+      } else {
+         // Native Google file, export it using preferred format.
+         String exportFormat = exportFormats.select(driveFile);
+         if (exportFormat != null){
+            downloadUrl = driveFile.getExportLinks().get(exportFormat);
+         }
       }
       return downloadUrl;
    }
@@ -254,27 +671,95 @@ public class DriveConnector{
     * @return This file mime type for indexation
     */
    public String getMimeType(File driveFile){
-      // If document or spreadsheet, we have asked PDF export so tell it's a PDF...
-      if (APPLICATION_VND_GOOGLE_APPS_DOCUMENT.equals(driveFile.getMimeType())){
-         return "application/pdf";
-      } else if (APPLICATION_VND_GOOGLE_APPS_SPREADSHEET.equals(driveFile.getMimeType())){
-         return "application/pdf";
+      // If native Google file, tell the format we have asked for export...
+      if (isExported(driveFile)){
+         String exportFormat = exportFormats.select(driveFile);
+         if (exportFormat != null){
+            return exportFormat;
+         }
       }
       return driveFile.getMimeType();
    }
    
+   /**
+    * Tell if a Google Drive file is a native Google file, whose content is exported rather than downloaded.
+    * @param driveFile The file to check
+    * @return true if file has no download url
+    */
+   public boolean isExported(File driveFile){
+      return driveFile.getDownloadUrl() == null || driveFile.getDownloadUrl().length() == 0;
+   }
+   
+   /**
+    * Tell if a Google Drive file content is text, which does not need parsing.
+    * @param driveFile The file to check
+    * @return true if file is a text file or a native Google file exported in a text format
+    */
+   public boolean isTextContent(File driveFile){
+      return DriveExportFormats.isText(getMimeType(driveFile));
+   }
+   
+   /** @return The tree of folders under scanned root folder, null if no folder is specified */
+   public DriveFolderTree getFolderTree(){
+      return folderTree;
+   }
+   
+   /**
+    * Keep folder tree up-to-date with a change : created or moved folders are linked
+    * to their new parents while trashed or deleted folders are removed.
+    * @param change A change read from changes feed
+    */
+   void applyFolderChange(Change change){
+      if (folderTree == null){
+         return;
+      }
+      File file = change.getFile();
+      if (Boolean.TRUE.equals(change.getDeleted())){
+         folderTree.remove(change.getFileId());
+      } else if (file != null && APPLICATION_VND_GOOGLE_APPS_FOLDER.equals(file.getMimeType())){
+         if (file.getLabels() != null && Boolean.TRUE.equals(file.getLabels().getTrashed())){
+            folderTree.remove(file.getId());
+         } else {
+            folderTree.update(file.getId(), getParentIds(file));
+         }
+      }
+   }
+   
+   /**
+    * Compute a fingerprint of a Google Drive file content. Binary files are identified by
+    * their MD5 checksum ; native Google files have no checksum so we rely on the exported
+    * format and their modification date, which unlike their version does not move when only
+    * sharing or other metadata change.
+    * @param driveFile The file to get fingerprint for
+    * @return A fingerprint that changes when indexed content changes, null if none can be computed
+    */
+   public String getFingerprint(File driveFile){
+      if (driveFile.getMd5Checksum() != null){
+         return "md5:" + driveFile.getMd5Checksum();
+      }
+      if (driveFile.getModifiedDate() != null){
+         return "export:" + getMimeType(driveFile) + ":" + driveFile.getModifiedDate().getValue();
+      }
+      return null;
+   }
+   
    /** */
-   private boolean isChangeInValidSubfolder(Change change){
+   boolean isChangeInValidSubfolder(Change change){
       // If no folder specified, change is valid.
       if (folderName == null){
          return true;
       }
+      // Deleted files come without metadata so their folder is unknown, deleting a document
+      // that was not indexed does no harm.
+      if (Boolean.TRUE.equals(change.getDeleted())){
+         return true;
+      }
       // Else, check if parent of file changed is in valid subfolders.
       if (change.getFile() != null){
          List<ParentReference> references = change.getFile().getParents();
          if (references != null && !references.isEmpty()){
             for (ParentReference reference : references){
-               if (subfoldersId.contains(reference.getId())){
+               if (folderTree.isInScope(reference.getId())){
                   return true;
                }
             }
@@ -283,9 +768,8 @@ public class DriveConnector{
       return false;
    }
    
-   /** Retrieve all the ids of subfolders under root folder name (recursively). */
-   private Set<String> getSubfoldersId(String rootFolderName) throws IOException{
-      Set<String> subfoldersId = new TreeSet<String>();
+   /** Build the tree of all folders, flagging the ones under root folder name. */
+   private DriveFolderTree loadFolderTree(String rootFolderName) throws IOException{
       String rootFolderId = null;
       Files.List request = null;
             
@@ -293,9 +777,10 @@ public class DriveConnector{
       try{
          request = service.files().list()
                .setMaxResults(2)
+               .setFields("items(id)")
                .setQ("title='" + rootFolderName + "' and mimeType='" + APPLICATION_VND_GOOGLE_APPS_FOLDER 
                      + "' and 'root' in parents");
-         FileList files = request.execute();
+         FileList files = execute(request);
          logger.debug("Found {} files corresponding to searched root folder", files.getItems().size());
          if (files != null && files.getItems().size() != 1){
             throw new FileNotFoundException(rootFolderName + " does not seem to be a valid folder into Google Drive root");
@@ -308,61 +793,182 @@ public class DriveConnector{
       }
       
       // 2nd step: retrieve all folders in drive ('cause we cannot get root folder children
-      // recursively with a single query) and store them into a map for later filtering.
-      Map<String, String> folderIdToParentId = new HashMap<String, String>();
+      // recursively with a single query) and link them to their parents.
+      Map<String, List<String>> folderIdToParentIds = new HashMap<String, List<String>>();
       try{
          request = service.files().list()
-               .setMaxResults(Integer.MAX_VALUE)
-               .setQ("mimeType='" + APPLICATION_VND_GOOGLE_APPS_FOLDER + "'");
-         FileList files = request.execute();
-         for (File folder : files.getItems()){
-            List<ParentReference> parents = folder.getParents();
-            if (parents != null && !parents.isEmpty()){
-               folderIdToParentId.put(folder.getId(), parents.get(0).getId());
+               .setMaxResults(1000)
+               .setFields("items(id,parents/id),nextPageToken")
+               .setQ("mimeType='" + APPLICATION_VND_GOOGLE_APPS_FOLDER + "' and trashed=false");
+         do{
+            FileList files = execute(request);
+            for (File folder : files.getItems()){
+               folderIdToParentIds.put(folder.getId(), getParentIds(folder));
             }
-         }
+            request.setPageToken(files.getNextPageToken());
+         } while (request.getPageToken() != null && request.getPageToken().length() > 0);
       } catch (IOException ioe){
          logger.error("IOException while retrieving all folders on drive service", ioe);
          throw ioe;
       }
       
-      // 3rd step: filter folders and store only the ids of children of searched rootFolder.
-      for (String folderId : folderIdToParentId.keySet()){
-         // If the root folder, just add it.
-         if (folderId.equals(rootFolderId)){
-            subfoldersId.add(folderId);
-         } else {
-            // Else, check the parents. 
-            List<String> parents = collectParents(folderId, folderIdToParentId);
-            logger.debug("Parents of {} are {}", folderId, parents);
-            // Last parent if the root of the drive, so searched root folder is the one before.
-            if (parents.size() > 1 && parents.get(parents.size() - 2).equals(rootFolderId)){
-               // Found a valid path to root folder, add folder and its parents but remove root before.
-               subfoldersId.add(folderId);
-               parents.remove(parents.size() - 1);
-               subfoldersId.addAll(parents);
+      // 3rd step: flag the folders under searched root folder.
+      DriveFolderTree tree = new DriveFolderTree(rootFolderId);
+      tree.putAll(folderIdToParentIds);
+      if (logger.isDebugEnabled()){
+         logger.debug("Subfolders Id to scan are {}", tree.getFoldersInScope());
+      }
+      return tree;
+   }
+   
+   /** Get the ids of a file's parents. */
+   private List<String> getParentIds(File file){
+      List<String> parentIds = new ArrayList<String>();
+      if (file.getParents() != null){
+         for (ParentReference parent : file.getParents()){
+            parentIds.add(parent.getId());
+         }
+      }
+      return parentIds;
+   }
+   
+   /** A call to Drive service that may be retried. */
+   interface DriveCall<T>{
+      T call() throws IOException;
+   }
+   
+   /** Execute a Drive API request, see {@link #execute(DriveCall, int)}. */
+   <T> T execute(final DriveRequest<T> request) throws IOException{
+      return execute(new DriveCall<T>(){
+         @Override
+         public T call() throws IOException{
+            return request.execute();
+         }
+      });
+   }
+   
+   /** Execute a call counting as a single request, see {@link #execute(DriveCall, int)}. */
+   <T> T execute(DriveCall<T> call) throws IOException{
+      return execute(call, 1);
+   }
+   
+   /**
+    * Execute a call to Drive service once the rate limiter allows it. When Drive throttles
+    * us or is temporarily unavailable, the call is retried after a jittered exponential
+    * backoff, and rate is lowered if we've been throttled.
+    * @param call The call to execute
+    * @param requests The number of requests call counts for against quota
+    * @return The call result
+    * @throws IOException if call fails for good or retries are exhausted
+    */
+   <T> T execute(DriveCall<T> call, int requests) throws IOException{
+      int attempt = 0;
+      while (true){
+         try{
+            rateLimiter.acquire(requests);
+            long start = System.currentTimeMillis();
+            T result = null;
+            try{
+               result = call.call();
+            } finally {
+               stats.onCall(System.currentTimeMillis() - start);
+            }
+            rateLimiter.onSuccess();
+            return result;
+         } catch (InterruptedException ie){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for Drive quota");
+         } catch (IOException ioe){
+            boolean throttled = isThrottling(ioe);
+            if (throttled){
+               rateLimiter.onThrottle();
+            }
+            boolean retried = attempt < maxRetries && (throttled || isTransient(ioe));
+            stats.onCallFailure(throttled, retried);
+            if (!retried){
+               throw ioe;
+            }
+            // Full jitter : wait a random time up to an exponentially growing delay.
+            long delay = (long)(Math.random() * Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(attempt, 20)));
+            attempt++;
+            if (logger.isDebugEnabled()){
+               logger.debug("Drive request failed with {}, retry #{} in {} ms", ioe.getMessage(), attempt, delay);
+            }
+            try{
+               Thread.sleep(delay);
+            } catch (InterruptedException ie){
+               Thread.currentThread().interrupt();
+               throw new InterruptedIOException("Interrupted while backing off");
             }
          }
       }
-      if (logger.isDebugEnabled()){
-         logger.debug("Subfolders Id to scan are {}", subfoldersId);
+   }
+   
+   /** Tell if an error means Drive asks us to slow down. */
+   private boolean isThrottling(IOException ioe){
+      if (!(ioe instanceof HttpResponseException)){
+         return false;
       }
-      return subfoldersId;
+      HttpResponseException hre = (HttpResponseException)ioe;
+      if (ioe instanceof GoogleJsonResponseException){
+         return isThrottling(hre.getStatusCode(), ((GoogleJsonResponseException)ioe).getDetails());
+      }
+      // Downloads and batches fail with raw responses, whose error details are left unparsed.
+      return isThrottling(hre.getStatusCode(), parseErrorDetails(hre.getContent()));
    }
    
-   /** Get the list of parents Id in ascending order. */
-   private List<String> collectParents(String folderId, Map<String, String> folderIdToParentId){
-      String parentId = folderIdToParentId.get(folderId);
-      if (logger.isTraceEnabled()){
-         logger.trace("Direct parent of {} is {}", folderId, parentId);
+   /**
+    * Parse the error details of a raw error response, the way GoogleJsonResponseException does.
+    * @return The details, null if response does not hold JSON error details
+    */
+   private static GoogleJsonError parseErrorDetails(String content){
+      if (content == null || content.length() == 0){
+         return null;
       }
-      List<String> ancestors = new ArrayList<String>();
-      ancestors.add(parentId);
-      
-      if (folderIdToParentId.containsKey(parentId)){
-         ancestors.addAll(collectParents(parentId, folderIdToParentId));
-         return ancestors;
+      try{
+         JsonParser parser = JSON_FACTORY.createJsonParser(content);
+         JsonToken currentToken = parser.getCurrentToken();
+         if (currentToken == null){
+            currentToken = parser.nextToken();
+         }
+         if (currentToken != null){
+            parser.skipToKey("error");
+            if (parser.getCurrentToken() != JsonToken.END_OBJECT){
+               return parser.parseAndClose(GoogleJsonError.class, null);
+            }
+         }
+      } catch (IOException ioe){
+         // Not a JSON error response.
+      } catch (IllegalArgumentException iae){
+         // JSON not holding error details.
+      }
+      return null;
+   }
+   
+   /** Tell if a response status and its error details mean Drive asks us to slow down. */
+   private boolean isThrottling(int status, GoogleJsonError details){
+      if (status == 429){
+         return true;
+      }
+      if (status == 403 && details != null && details.getErrors() != null){
+         for (GoogleJsonError.ErrorInfo error : details.getErrors()){
+            if ("rateLimitExceeded".equals(error.getReason()) || "userRateLimitExceeded".equals(error.getReason())){
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+   
+   /**
+    * Tell if an error is temporary : server errors or network failures. Other errors, like
+    * local disk ones, would fail the same way again.
+    */
+   private boolean isTransient(IOException ioe){
+      if (ioe instanceof HttpResponseException){
+         return ((HttpResponseException)ioe).getStatusCode() >= 500;
       }
-      return ancestors;
+      return ioe instanceof SocketException || ioe instanceof SocketTimeoutException
+            || ioe instanceof UnknownHostException || ioe instanceof SSLException;
    }
 }
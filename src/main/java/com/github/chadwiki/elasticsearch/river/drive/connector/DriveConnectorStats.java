@@ -0,0 +1,86 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.connector;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+/**
+ * The counters of a connector : Drive API calls with their outcome and latency, and
+ * downloaded contents with their size and download time.
+ * @author laurent
+ */
+public class DriveConnectorStats{
+
+   private final AtomicLong calls = new AtomicLong();
+   private final AtomicLong retries = new AtomicLong();
+   private final AtomicLong throttled = new AtomicLong();
+   private final AtomicLong failures = new AtomicLong();
+   private final DriveLatencyHistogram callLatency = new DriveLatencyHistogram();
+
+   private final AtomicLong downloads = new AtomicLong();
+   private final AtomicLong bytesDownloaded = new AtomicLong();
+   private final DriveLatencyHistogram downloadTime = new DriveLatencyHistogram();
+
+   /** Record a call attempt, whatever its outcome. */
+   void onCall(long latencyMillis){
+      calls.incrementAndGet();
+      callLatency.record(latencyMillis);
+   }
+
+   /** Record a failed call attempt. */
+   void onCallFailure(boolean throttling, boolean retried){
+      if (throttling){
+         throttled.incrementAndGet();
+      }
+      if (retried){
+         retries.incrementAndGet();
+      } else {
+         failures.incrementAndGet();
+      }
+   }
+
+   /** Record a completed download. */
+   void onDownload(long bytes, long millis){
+      downloads.incrementAndGet();
+      bytesDownloaded.addAndGet(bytes);
+      downloadTime.record(millis);
+   }
+
+   /**
+    * Write these counters.
+    * @param builder The builder to write into
+    * @param name The name of written object
+    * @return The builder
+    */
+   public XContentBuilder toXContent(XContentBuilder builder, String name) throws IOException{
+      builder.startObject(name)
+         .field("api_calls", calls.get())
+         .field("api_retries", retries.get())
+         .field("api_throttled", throttled.get())
+         .field("api_failures", failures.get());
+      callLatency.toXContent(builder, "api_latency");
+      builder
+         .field("downloads", downloads.get())
+         .field("bytes_downloaded", bytesDownloaded.get());
+      downloadTime.toXContent(builder, "download_time");
+      return builder.endObject();
+   }
+}
@@ -0,0 +1,92 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.connector;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.elasticsearch.common.io.Streams;
+/**
+ * The downloaded content of a Google Drive file. Small contents are held in memory while
+ * larger ones are spilled to a temporary file that is removed when content is closed.
+ * @author laurent
+ */
+public class DriveContent implements Closeable{
+
+   private final byte[] bytes;
+   private final File file;
+   private final long length;
+
+   /** Build a content held in memory. */
+   DriveContent(byte[] bytes){
+      this.bytes = bytes;
+      this.file = null;
+      this.length = bytes.length;
+   }
+
+   /** Build a content spilled to a temporary file. */
+   DriveContent(File file){
+      this.bytes = null;
+      this.file = file;
+      this.length = file.length();
+   }
+
+   /** @return true if content has been spilled to disk */
+   public boolean isSpilled(){
+      return file != null;
+   }
+
+   /** @return The temporary file holding content, null if content is in memory */
+   public File getFile(){
+      return file;
+   }
+
+   /** @return The content length in bytes */
+   public long getLength(){
+      return length;
+   }
+
+   /** @return A new stream on content, to be closed by caller */
+   public InputStream openStream() throws IOException{
+      if (file != null){
+         return new FileInputStream(file);
+      }
+      return new ByteArrayInputStream(bytes);
+   }
+
+   /** @return The whole content as byte array, reading spilled file if necessary */
+   public byte[] toByteArray() throws IOException{
+      if (file != null){
+         return Streams.copyToByteArray(file);
+      }
+      return bytes;
+   }
+
+   /** Release content, removing spilled file if any. */
+   @Override
+   public void close(){
+      if (file != null){
+         file.delete();
+      }
+   }
+}
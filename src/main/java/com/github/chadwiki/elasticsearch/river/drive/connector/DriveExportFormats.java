@@ -0,0 +1,114 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.connector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.api.services.drive.model.File;
+/**
+ * A registry of export formats to use for native Google files, which cannot be downloaded
+ * as is. For each native mime type, formats are listed by order of preference and the first
+ * one offered by the file export links is chosen. Defaults favor formats that are cheap to
+ * turn into text : plain text for documents and presentations, and OOXML for spreadsheets
+ * as CSV export only holds the first sheet.
+ * @author laurent
+ */
+public class DriveExportFormats{
+
+   /** */
+   public static final String APPLICATION_VND_GOOGLE_APPS_PRESENTATION = "application/vnd.google-apps.presentation";
+
+   /** */
+   public static final String TEXT_PLAIN = "text/plain";
+   /** */
+   public static final String TEXT_CSV = "text/csv";
+   /** */
+   public static final String TEXT_TSV = "text/tab-separated-values";
+   /** */
+   public static final String TEXT_MARKDOWN = "text/markdown";
+   /** */
+   public static final String TEXT_X_MARKDOWN = "text/x-markdown";
+   /** */
+   public static final String APPLICATION_JSON = "application/json";
+   /** */
+   public static final String APPLICATION_PDF = "application/pdf";
+   /** */
+   public static final String APPLICATION_XLSX = "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+
+   private final Map<String, List<String>> preferences = new HashMap<String, List<String>>();
+
+   /** @return A registry holding default preferences */
+   public static DriveExportFormats defaults(){
+      DriveExportFormats formats = new DriveExportFormats();
+      formats.setPreferences(DriveConnector.APPLICATION_VND_GOOGLE_APPS_DOCUMENT,
+            Arrays.asList(TEXT_PLAIN, APPLICATION_PDF));
+      formats.setPreferences(APPLICATION_VND_GOOGLE_APPS_PRESENTATION,
+            Arrays.asList(TEXT_PLAIN, APPLICATION_PDF));
+      formats.setPreferences(DriveConnector.APPLICATION_VND_GOOGLE_APPS_SPREADSHEET,
+            Arrays.asList(APPLICATION_XLSX, APPLICATION_PDF));
+      return formats;
+   }
+
+   /**
+    * Define the export formats for a native mime type, replacing previous ones.
+    * @param nativeMimeType The mime type of native Google files
+    * @param exportMimeTypes The export mime types by order of preference, empty for not exporting
+    */
+   public void setPreferences(String nativeMimeType, List<String> exportMimeTypes){
+      preferences.put(nativeMimeType, new ArrayList<String>(exportMimeTypes));
+   }
+
+   /**
+    * Choose the export format of a file.
+    * @param driveFile The file to export
+    * @return The preferred format among the ones offered by file, null if file cannot be exported
+    */
+   public String select(File driveFile){
+      List<String> formats = preferences.get(driveFile.getMimeType());
+      if (formats == null || driveFile.getExportLinks() == null){
+         return null;
+      }
+      for (String format : formats){
+         if (driveFile.getExportLinks().containsKey(format)){
+            return format;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Tell if a content type is already text to be indexed as is, so that no parsing is needed.
+    * Markup formats like HTML are not, as their text has to be told from their tags.
+    * @param mimeType The content type, parameters like charset being ignored
+    * @return true for plain text, CSV, TSV, Markdown and JSON formats
+    */
+   public static boolean isText(String mimeType){
+      if (mimeType == null){
+         return false;
+      }
+      int parameters = mimeType.indexOf(';');
+      String baseType = (parameters < 0 ? mimeType : mimeType.substring(0, parameters)).trim().toLowerCase();
+      return TEXT_PLAIN.equals(baseType) || TEXT_CSV.equals(baseType) || TEXT_TSV.equals(baseType)
+            || TEXT_MARKDOWN.equals(baseType) || TEXT_X_MARKDOWN.equals(baseType) || APPLICATION_JSON.equals(baseType);
+   }
+}
@@ -0,0 +1,199 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.connector;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+/**
+ * An in-memory graph of Google Drive folders, keyed by id with links to parents and children.
+ * Each folder carries a cached flag telling if it is the scanned root folder or one of its
+ * descendants. Flags are maintained incrementally when folders are created, moved or removed,
+ * so that checking a folder is in scope is a simple hash lookup.
+ * @author laurent
+ */
+public class DriveFolderTree{
+
+   private final String rootFolderId;
+
+   /** Parent ids of each known folder. */
+   private final Map<String, Set<String>> parents = new HashMap<String, Set<String>>();
+   /** Child folder ids of each folder, known or not. */
+   private final Map<String, Set<String>> children = new HashMap<String, Set<String>>();
+   /** Ids of folders that are the root folder or one of its descendants. */
+   private final Set<String> inScope = new HashSet<String>();
+
+   /**
+    * Build an empty tree.
+    * @param rootFolderId The id of scanned root folder
+    */
+   public DriveFolderTree(String rootFolderId){
+      this.rootFolderId = rootFolderId;
+      this.parents.put(rootFolderId, new HashSet<String>());
+      this.inScope.add(rootFolderId);
+   }
+
+   /** @return The id of scanned root folder */
+   public String getRootFolderId(){
+      return rootFolderId;
+   }
+
+   /**
+    * Tell if a folder is the root folder or one of its descendants.
+    * @param folderId The id of folder to check
+    * @return true if folder is in scanned scope
+    */
+   public synchronized boolean isInScope(String folderId){
+      return inScope.contains(folderId);
+   }
+
+   /** @return The ids of all folders currently in scope */
+   public synchronized Set<String> getFoldersInScope(){
+      return new HashSet<String>(inScope);
+   }
+
+   /** @return true if the folder is known by this tree */
+   public synchronized boolean contains(String folderId){
+      return parents.containsKey(folderId);
+   }
+
+   /** @return The number of folders currently in scope */
+   public synchronized int scopeSize(){
+      return inScope.size();
+   }
+
+   /**
+    * Load many folders at once, computing scope flags only once at the end. This is
+    * intended for initial loading of the whole folders graph.
+    * @param folderIdToParentIds Parent ids of each folder
+    */
+   public synchronized void putAll(Map<String, ? extends Collection<String>> folderIdToParentIds){
+      for (Map.Entry<String, ? extends Collection<String>> entry : folderIdToParentIds.entrySet()){
+         link(entry.getKey(), entry.getValue());
+      }
+      // Walk down from root folder to flag its descendants.
+      inScope.clear();
+      inScope.add(rootFolderId);
+      Deque<String> toVisit = new ArrayDeque<String>();
+      toVisit.add(rootFolderId);
+      while (!toVisit.isEmpty()){
+         for (String child : childrenOf(toVisit.poll())){
+            if (inScope.add(child)){
+               toVisit.add(child);
+            }
+         }
+      }
+   }
+
+   /**
+    * Create or move a folder, updating scope flags of the folder and its descendants.
+    * @param folderId The id of folder
+    * @param parentIds The ids of folder's parents
+    */
+   public synchronized void update(String folderId, Collection<String> parentIds){
+      unlink(folderId);
+      link(folderId, parentIds);
+      propagate(folderId);
+   }
+
+   /**
+    * Remove a trashed or deleted folder, updating scope flags of its descendants.
+    * @param folderId The id of folder
+    */
+   public synchronized void remove(String folderId){
+      if (folderId.equals(rootFolderId) || !parents.containsKey(folderId)){
+         return;
+      }
+      unlink(folderId);
+      parents.remove(folderId);
+      inScope.remove(folderId);
+      for (String child : childrenOf(folderId)){
+         propagate(child);
+      }
+   }
+
+   /** Recompute scope flag of a folder and, if it changed, of its descendants. */
+   private void propagate(String folderId){
+      Deque<String> toVisit = new ArrayDeque<String>();
+      toVisit.add(folderId);
+      while (!toVisit.isEmpty()){
+         String current = toVisit.poll();
+         boolean scoped = computeScope(current);
+         boolean changed = scoped ? inScope.add(current) : inScope.remove(current);
+         if (changed){
+            toVisit.addAll(childrenOf(current));
+         }
+      }
+   }
+
+   /** A folder is in scope if it is the root or if one of its parents is in scope. */
+   private boolean computeScope(String folderId){
+      if (folderId.equals(rootFolderId)){
+         return true;
+      }
+      Set<String> folderParents = parents.get(folderId);
+      if (folderParents != null){
+         for (String parentId : folderParents){
+            if (inScope.contains(parentId)){
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+
+   private void link(String folderId, Collection<String> parentIds){
+      Set<String> folderParents = new HashSet<String>(parentIds);
+      parents.put(folderId, folderParents);
+      for (String parentId : folderParents){
+         Set<String> siblings = children.get(parentId);
+         if (siblings == null){
+            siblings = new HashSet<String>();
+            children.put(parentId, siblings);
+         }
+         siblings.add(folderId);
+      }
+   }
+
+   private void unlink(String folderId){
+      Set<String> folderParents = parents.get(folderId);
+      if (folderParents == null){
+         return;
+      }
+      for (String parentId : folderParents){
+         Set<String> siblings = children.get(parentId);
+         if (siblings != null){
+            siblings.remove(folderId);
+            if (siblings.isEmpty()){
+               children.remove(parentId);
+            }
+         }
+      }
+   }
+
+   private Set<String> childrenOf(String folderId){
+      Set<String> folderChildren = children.get(folderId);
+      return folderChildren != null ? folderChildren : Collections.<String>emptySet();
+   }
+}
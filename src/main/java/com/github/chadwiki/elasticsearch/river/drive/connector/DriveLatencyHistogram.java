@@ -0,0 +1,108 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.connector;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+/**
+ * A lock-free histogram of latencies in milliseconds. Latencies are counted into fixed
+ * buckets following a 1-2-5 progression, so that percentiles are known within a bucket
+ * whatever the number of recorded values and at a constant memory cost.
+ * @author laurent
+ */
+public class DriveLatencyHistogram{
+
+   /** Upper bounds of buckets, a last bucket holding larger values. */
+   private static final long[] BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 50000, 100000};
+
+   private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+   private final AtomicLong count = new AtomicLong();
+   private final AtomicLong sum = new AtomicLong();
+   private final AtomicLong max = new AtomicLong();
+
+   /**
+    * Record a latency.
+    * @param millis The latency in milliseconds
+    */
+   public void record(long millis){
+      int bucket = 0;
+      while (bucket < BOUNDS.length && millis > BOUNDS[bucket]){
+         bucket++;
+      }
+      buckets.incrementAndGet(bucket);
+      count.incrementAndGet();
+      sum.addAndGet(millis);
+      long current = max.get();
+      while (millis > current && !max.compareAndSet(current, millis)){
+         current = max.get();
+      }
+   }
+
+   /** @return The number of recorded latencies */
+   public long getCount(){
+      return count.get();
+   }
+
+   /** @return The sum of recorded latencies in milliseconds */
+   public long getSum(){
+      return sum.get();
+   }
+
+   /** @return The largest recorded latency in milliseconds */
+   public long getMax(){
+      return max.get();
+   }
+
+   /**
+    * Estimate a percentile of recorded latencies.
+    * @param percentile The percentile, between 0 and 100
+    * @return The upper bound of bucket holding percentile, 0 if nothing was recorded
+    */
+   public long getPercentile(double percentile){
+      long target = (long)Math.ceil(percentile / 100 * count.get());
+      long cumulated = 0;
+      for (int bucket = 0; bucket < BOUNDS.length; bucket++){
+         cumulated += buckets.get(bucket);
+         if (cumulated >= target && cumulated > 0){
+            return Math.min(BOUNDS[bucket], max.get());
+         }
+      }
+      return max.get();
+   }
+
+   /**
+    * Write a summary of this histogram.
+    * @param builder The builder to write into
+    * @param name The name of written object
+    * @return The builder
+    */
+   public XContentBuilder toXContent(XContentBuilder builder, String name) throws IOException{
+      return builder.startObject(name)
+            .field("count", getCount())
+            .field("total_millis", getSum())
+            .field("max_millis", getMax())
+            .field("p50_millis", getPercentile(50))
+            .field("p90_millis", getPercentile(90))
+            .field("p99_millis", getPercentile(99))
+         .endObject();
+   }
+}
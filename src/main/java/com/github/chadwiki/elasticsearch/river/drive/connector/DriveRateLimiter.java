@@ -0,0 +1,103 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.connector;
+
+import java.util.concurrent.TimeUnit;
+/**
+ * A token bucket limiting the rate of requests sent to Google Drive. The rate adapts
+ * itself to the quota actually granted : it is halved each time Drive throttles us and
+ * grows back slowly on success, so that it converges on the highest sustainable rate.
+ * @author laurent
+ */
+public class DriveRateLimiter{
+
+   private final double maxRate;
+   private final double minRate;
+   private final double increment;
+
+   private double rate;
+   private double tokens;
+   private long lastRefill;
+
+   /**
+    * Build a new limiter starting at its maximum rate.
+    * @param maxRate Maximum number of requests per second, strictly positive
+    */
+   public DriveRateLimiter(double maxRate){
+      if (!(maxRate > 0)){
+         throw new IllegalArgumentException("Maximum rate should be positive, got " + maxRate);
+      }
+      this.maxRate = maxRate;
+      this.minRate = Math.min(maxRate, 0.1);
+      this.increment = maxRate / 100;
+      this.rate = maxRate;
+      this.tokens = 1;
+      this.lastRefill = System.nanoTime();
+   }
+
+   /** @return The current allowed number of requests per second */
+   public synchronized double getRate(){
+      return rate;
+   }
+
+   /**
+    * Take a token for sending a request, waiting for it if bucket is empty. Tokens
+    * are reserved in order so that waiting callers are served fairly.
+    */
+   public void acquire() throws InterruptedException{
+      acquire(1);
+   }
+
+   /**
+    * Take many tokens at once, for a batch request counting as many requests against quota.
+    * @param permits The number of tokens to take
+    */
+   public void acquire(int permits) throws InterruptedException{
+      long waitNanos;
+      synchronized (this){
+         refill();
+         tokens -= permits;
+         waitNanos = tokens >= 0 ? 0 : (long)(-tokens / rate * TimeUnit.SECONDS.toNanos(1));
+      }
+      if (waitNanos > 0){
+         TimeUnit.NANOSECONDS.sleep(waitNanos);
+      }
+   }
+
+   /** Signal a request has succeeded, increasing rate a little. */
+   public synchronized void onSuccess(){
+      if (rate < maxRate){
+         refill();
+         rate = Math.min(maxRate, rate + increment);
+      }
+   }
+
+   /** Signal a request has been throttled by Drive, halving rate. */
+   public synchronized void onThrottle(){
+      refill();
+      rate = Math.max(minRate, rate / 2);
+   }
+
+   /** Add tokens earned since last refill, up to one second of burst. */
+   private void refill(){
+      long now = System.nanoTime();
+      tokens = Math.min(Math.max(1, rate), tokens + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+      lastRefill = now;
+   }
+}
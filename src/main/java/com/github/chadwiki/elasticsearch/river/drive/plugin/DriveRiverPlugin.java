@@ -18,14 +18,20 @@
  */
 package com.github.chadwiki.elasticsearch.river.drive.plugin;
 
+import java.util.ArrayList;
+import java.util.Collection;
+
 import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.plugins.AbstractPlugin;
 import org.elasticsearch.rest.RestModule;
 import org.elasticsearch.river.RiversModule;
 
 import com.github.chadwiki.elasticsearch.river.drive.river.DriveRiverModule;
+import com.github.chadwiki.elasticsearch.river.drive.river.DriveRiverRegistryModule;
 import com.github.chadwiki.elasticsearch.river.drive.rest.DriveManageAction;
+import com.github.chadwiki.elasticsearch.river.drive.rest.DriveNotificationAction;
 import com.github.chadwiki.elasticsearch.river.drive.rest.DriveOAuthAction;
+import com.github.chadwiki.elasticsearch.river.drive.rest.DriveStatsAction;
 /**
  * Google Drive River plugin definition.
  * @author laurent
@@ -42,6 +48,13 @@ public class DriveRiverPlugin extends AbstractPlugin{
       return "River Google Drive Plugin";
    }
 
+   @Override
+   public Collection<Class<? extends Module>> modules(){
+      Collection<Class<? extends Module>> modules = new ArrayList<Class<? extends Module>>();
+      modules.add(DriveRiverRegistryModule.class);
+      return modules;
+   }
+
    @Override
    public void processModule(Module module){
       if (module instanceof RiversModule){
@@ -50,6 +63,8 @@ public class DriveRiverPlugin extends AbstractPlugin{
       if (module instanceof RestModule){
          ((RestModule) module).addRestAction(DriveOAuthAction.class);
          ((RestModule) module).addRestAction(DriveManageAction.class);
+         ((RestModule) module).addRestAction(DriveNotificationAction.class);
+         ((RestModule) module).addRestAction(DriveStatsAction.class);
       }
    }
 }
\ No newline at end of file
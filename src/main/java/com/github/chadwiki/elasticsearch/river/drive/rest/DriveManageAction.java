@@ -33,9 +33,13 @@ import org.elasticsearch.rest.RestRequest;
 import org.elasticsearch.rest.RestRequest.Method;
 import org.elasticsearch.rest.RestStatus;
 
+import com.github.chadwiki.elasticsearch.river.drive.river.DriveRiver;
+import com.github.chadwiki.elasticsearch.river.drive.river.DriveRiverCommands;
+import com.github.chadwiki.elasticsearch.river.drive.river.DriveRiverRegistry;
+
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 /**
- * REST actions definition for starting and stopping a Google Drive river.
+ * REST actions definition for starting, stopping, waking up and reindexing a Google Drive river.
  * @author laurent
  */
 public class DriveManageAction extends BaseRestHandler{
@@ -44,10 +48,20 @@ public class DriveManageAction extends BaseRestHandler{
    public static final String START_COMMAND = "_start";
    /** The constant for 'stop river' command. */
    public static final String STOP_COMMAND = "_stop";
+   /** The constant for 'scan now' command. */
+   public static final String SCAN_COMMAND = "_scan";
+   /** The constant for 'reindex from cache' command. */
+   public static final String REINDEX_COMMAND = "_reindex";
+   
+   private final DriveRiverRegistry registry;
+   private final DriveRiverCommands commands;
    
    @Inject
-   public DriveManageAction(Settings settings, Client client, RestController controller){
+   public DriveManageAction(Settings settings, Client client, RestController controller, DriveRiverRegistry registry, 
+         DriveRiverCommands commands){
       super(settings, client);
+      this.registry = registry;
+      this.commands = commands;
 
       // Define S3 REST endpoints.
       controller.registerHandler(Method.GET, "/_drive/{rivername}/{command}", this);
@@ -70,6 +84,20 @@ public class DriveManageAction extends BaseRestHandler{
       }
       
       try{
+         if (SCAN_COMMAND.equals(command) || REINDEX_COMMAND.equals(command)){
+            // Any node can handle these, commands are forwarded to the node running the river.
+            String output = commands.execute(rivername, SCAN_COMMAND.equals(command) ? DriveRiverCommands.SCAN 
+                  : DriveRiverCommands.REINDEX);
+            if (output == null){
+               XContentBuilder builder = jsonBuilder()
+                  .startObject()
+                     .field(new XContentBuilderString("ok"), false)
+                     .field(new XContentBuilderString("error"), "River " + rivername + " is not running")
+                  .endObject();
+               channel.sendResponse(new BytesRestResponse(RestStatus.NOT_FOUND, builder));
+               return;
+            }
+         }
          if (status != null){
             XContentBuilder xb = jsonBuilder()
                .startObject()
@@ -79,6 +107,12 @@ public class DriveManageAction extends BaseRestHandler{
                   .endObject()
                .endObject();
             client.prepareIndex("_river", rivername, "_drivestatus").setSource(xb).execute().actionGet();
+            
+            // If river runs on this node, let it know at once. Others read status on their next cycle.
+            DriveRiver river = registry.get(rivername);
+            if (river != null){
+               river.updateStatus(status);
+            }
          }
          
          XContentBuilder builder = jsonBuilder();
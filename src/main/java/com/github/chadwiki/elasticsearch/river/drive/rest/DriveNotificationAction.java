@@ -0,0 +1,79 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.rest;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestRequest.Method;
+import org.elasticsearch.rest.RestStatus;
+
+import com.github.chadwiki.elasticsearch.river.drive.river.DriveRiver;
+import com.github.chadwiki.elasticsearch.river.drive.river.DriveRiverRegistry;
+/**
+ * REST action receiving the changes notifications pushed by Google Drive on the
+ * channel opened by a river, waking the river up for scanning at once.
+ * @author laurent
+ */
+public class DriveNotificationAction extends BaseRestHandler{
+
+   /** The header holding the id of notification channel. */
+   public static final String CHANNEL_ID_HEADER = "X-Goog-Channel-ID";
+   /** The header holding the secret token of notification channel. */
+   public static final String CHANNEL_TOKEN_HEADER = "X-Goog-Channel-Token";
+   /** The header holding the kind of notification, 'sync' when a channel is opened. */
+   public static final String RESOURCE_STATE_HEADER = "X-Goog-Resource-State";
+
+   private final DriveRiverRegistry registry;
+
+   @Inject
+   public DriveNotificationAction(Settings settings, Client client, RestController controller, DriveRiverRegistry registry){
+      super(settings, client);
+      this.registry = registry;
+
+      // Define Drive notifications REST endpoint.
+      controller.registerHandler(Method.POST, "/_drive/{rivername}/_notify", this);
+   }
+
+   @Override
+   public void handleRequest(RestRequest request, RestChannel channel, Client client) throws Exception{
+      String rivername = request.param("rivername");
+      if (logger.isDebugEnabled()){
+         logger.debug("Received {} notification for river {}", request.header(RESOURCE_STATE_HEADER), rivername);
+      }
+
+      DriveRiver river = registry.get(rivername);
+      if (river == null){
+         channel.sendResponse(new BytesRestResponse(RestStatus.NOT_FOUND));
+         return;
+      }
+      if (!river.onNotification(request.header(CHANNEL_ID_HEADER), request.header(CHANNEL_TOKEN_HEADER),
+            request.header(RESOURCE_STATE_HEADER))){
+         logger.warn("Rejecting notification for river {} with a wrong token", rivername);
+         channel.sendResponse(new BytesRestResponse(RestStatus.FORBIDDEN));
+         return;
+      }
+      channel.sendResponse(new BytesRestResponse(RestStatus.OK));
+   }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.rest;
+
+import java.io.IOException;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestRequest.Method;
+import org.elasticsearch.rest.RestStatus;
+
+import com.github.chadwiki.elasticsearch.river.drive.river.DriveRiverCommands;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+/**
+ * REST action exposing the counters of a Google Drive river, for graphing its throughput
+ * and finding out which stage is slowing it down. Counters are read on the node running the
+ * river, whichever node receives the request.
+ * @author laurent
+ */
+public class DriveStatsAction extends BaseRestHandler{
+
+   private final DriveRiverCommands commands;
+   
+   @Inject
+   public DriveStatsAction(Settings settings, Client client, RestController controller, DriveRiverCommands commands){
+      super(settings, client);
+      this.commands = commands;
+
+      // Takes precedence over the management commands endpoint.
+      controller.registerHandler(Method.GET, "/_drive/{rivername}/_stats", this);
+   }
+   
+   @Override
+   public void handleRequest(RestRequest request, RestChannel channel, Client client) throws Exception{
+      String rivername = request.param("rivername");
+      try{
+         // Counters live in memory of the node running the river, command is forwarded to it.
+         String stats = commands.execute(rivername, DriveRiverCommands.STATS);
+         if (stats == null){
+            XContentBuilder builder = jsonBuilder()
+               .startObject()
+                  .field(new XContentBuilderString("ok"), false)
+                  .field(new XContentBuilderString("error"), "River " + rivername + " is not running")
+               .endObject();
+            channel.sendResponse(new BytesRestResponse(RestStatus.NOT_FOUND, builder));
+            return;
+         }
+         XContentBuilder builder = jsonBuilder();
+         if (request.paramAsBoolean("pretty", false)){
+            builder.prettyPrint();
+         }
+         XContentParser parser = JsonXContent.jsonXContent.createParser(stats);
+         try{
+            parser.nextToken();
+            builder.copyCurrentStructure(parser);
+         } finally {
+            parser.close();
+         }
+         channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+      } catch (IOException e){
+         try{
+            channel.sendResponse(new BytesRestResponse(channel, e));
+         } catch (IOException ioe){
+            logger.error("Sending failure response fails !", e);
+            channel.sendResponse(new BytesRestResponse(RestStatus.INTERNAL_SERVER_ERROR));
+         }
+      }
+   }
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.river;
+
+import java.util.TreeMap;
+/**
+ * Tracks which changes have been acknowledged by Elasticsearch in order to compute a low
+ * watermark : the largest change id such that this change and all the previous ones are
+ * safely indexed. Recording this watermark as river progress means a restarted river
+ * replays exactly the changes that may not have been indexed, and nothing more.
+ * <p>
+ * Changes are registered when handed to the indexing pipeline and acknowledged once their
+ * bulk response is received, or once they are dropped without producing any request. A
+ * change whose download, extraction or bulk failed holds the watermark back so that it is
+ * replayed by next scan.
+ * @author laurent
+ */
+public class DriveAckTracker{
+
+   /** Number of registered but not yet acknowledged changes, by change id. */
+   private final TreeMap<Long, Integer> pending = new TreeMap<Long, Integer>();
+   /** Lowest change id whose request failed, Long.MAX_VALUE if none. */
+   private long lowestFailed = Long.MAX_VALUE;
+   /** Largest change id such that all changes up to it have been registered. */
+   private long registeredUpTo;
+
+   /**
+    * Start tracking changes following a given one.
+    * @param changeId The id of last change known to be indexed
+    */
+   public synchronized void reset(long changeId){
+      pending.clear();
+      lowestFailed = Long.MAX_VALUE;
+      registeredUpTo = changeId;
+   }
+
+   /** Register a change about to produce an indexing request. */
+   public synchronized void register(long changeId){
+      Integer count = pending.get(changeId);
+      pending.put(changeId, count == null ? 1 : count + 1);
+   }
+
+   /**
+    * Tell that all the changes up to a given one have been registered, the ones that were
+    * not being considered as indexed.
+    * @param changeId The id of last change read from Drive
+    */
+   public synchronized void advance(long changeId){
+      registeredUpTo = Math.max(registeredUpTo, changeId);
+   }
+
+   /** Acknowledge a change that has been indexed or that has nothing to index. */
+   public synchronized void acknowledge(long changeId){
+      release(changeId);
+   }
+
+   /** Acknowledge a change whose indexing failed, holding watermark back. */
+   public synchronized void fail(long changeId){
+      release(changeId);
+      lowestFailed = Math.min(lowestFailed, changeId);
+   }
+
+   /** @return true if the indexing of a change has failed since last reset */
+   public synchronized boolean hasFailures(){
+      return lowestFailed != Long.MAX_VALUE;
+   }
+
+   /** @return The largest change id such that all changes up to it are indexed */
+   public synchronized long getWatermark(){
+      long watermark = registeredUpTo;
+      if (!pending.isEmpty()){
+         watermark = Math.min(watermark, pending.firstKey() - 1);
+      }
+      return Math.min(watermark, lowestFailed - 1);
+   }
+
+   /** Wait for all the registered changes to be acknowledged. */
+   public synchronized void awaitAcknowledged() throws InterruptedException{
+      while (!pending.isEmpty()){
+         wait();
+      }
+   }
+
+   private void release(long changeId){
+      Integer count = pending.get(changeId);
+      if (count == null){
+         return;
+      }
+      if (count > 1){
+         pending.put(changeId, count - 1);
+      } else {
+         pending.remove(changeId);
+         if (pending.isEmpty()){
+            notifyAll();
+         }
+      }
+   }
+}
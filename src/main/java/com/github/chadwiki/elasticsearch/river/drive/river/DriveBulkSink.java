@@ -0,0 +1,325 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.river;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.RestStatus;
+
+import com.github.chadwiki.elasticsearch.river.drive.connector.DriveLatencyHistogram;
+import com.google.api.services.drive.model.Change;
+/**
+ * The entry point of indexing requests into the river BulkProcessor, shared by all the feeds
+ * of the river. Each request carries its change and the tracker of its feed as payload so that
+ * bulk responses can be related to changes. The memory held by requests is accounted from
+ * the moment they are added until their bulk is answered.
+ * <p>
+ * When many bulks may be executed concurrently, a request is only added once its file has been
+ * reserved, which waits for previous requests on the same file to be answered, so that bulks
+ * cannot apply them out of order.
+ * <p>
+ * In adaptive mode, the number of actions per bulk is driven by the sink rather than by a fixed
+ * setting : it grows while bulks are answered under a target latency, shrinks when they are slower
+ * and is halved when Elasticsearch rejects them because its bulk queue is full.
+ * @author laurent
+ */
+public class DriveBulkSink{
+
+   private static final ESLogger logger = Loggers.getLogger(DriveBulkSink.class);
+
+   /** The fixed cost accounted for a request on top of its source. */
+   private static final int REQUEST_OVERHEAD = 100;
+
+   private final BulkProcessor bulkProcessor;
+   private final DriveMemoryBudget.Account memory;
+   private final boolean ordered;
+   private final boolean adaptive;
+   private final int minActions;
+   private final int maxActions;
+   private final long targetLatencyMillis;
+
+   /** Ids of files having a request added but not yet answered. Guarded by this. */
+   private final Set<String> inFlightFiles = new HashSet<String>();
+   private int targetActions;
+   /** Number of actions added since the last bulk was executed, whatever triggered it. */
+   private int pendingActions = 0;
+
+   private final AtomicLong bulks = new AtomicLong();
+   private final AtomicLong actions = new AtomicLong();
+   private final AtomicLong failedBulks = new AtomicLong();
+   private final AtomicLong failedItems = new AtomicLong();
+   private final AtomicLong rejections = new AtomicLong();
+   private final DriveLatencyHistogram latency = new DriveLatencyHistogram();
+
+   /**
+    * Build a new sink.
+    * @param bulkProcessor The processor requests are added to
+    * @param memory The account of memory held by the river
+    * @param concurrentRequests The number of bulks processor may execute concurrently
+    * @param bulkActions The number of actions per bulk, the initial one in adaptive mode
+    * @param adaptive Whether to adapt the number of actions per bulk to observed latency
+    * @param targetLatencyMillis The bulk latency adaptive mode aims at
+    */
+   public DriveBulkSink(BulkProcessor bulkProcessor, DriveMemoryBudget.Account memory, int concurrentRequests, 
+         int bulkActions, boolean adaptive, long targetLatencyMillis){
+      this.bulkProcessor = bulkProcessor;
+      this.memory = memory;
+      this.ordered = concurrentRequests > 1;
+      this.adaptive = adaptive;
+      this.minActions = Math.max(1, bulkActions / 10);
+      this.maxActions = bulkActions * 10;
+      this.targetActions = bulkActions;
+      this.targetLatencyMillis = targetLatencyMillis;
+   }
+
+   /** @return The number of actions per bulk currently aimed at */
+   public synchronized int getTargetActions(){
+      return targetActions;
+   }
+
+   /** The payload of requests added through the sink. */
+   public static class Item{
+      private final Change change;
+      private final DriveAckTracker acks;
+      private final long size;
+
+      Item(Change change, DriveAckTracker acks, long size){
+         this.change = change;
+         this.acks = acks;
+         this.size = size;
+      }
+
+      /** @return The change request was built for */
+      public Change getChange(){
+         return change;
+      }
+      /** @return The tracker to acknowledge change with */
+      public DriveAckTracker getAcks(){
+         return acks;
+      }
+   }
+
+   /**
+    * Reserve a file for the next request added on it, waiting for previous requests on this
+    * file to be answered when many bulks may be executed concurrently. As this may wait for a
+    * bulk, callers should not hold any lock. A reservation is consumed by {@link #add} or given
+    * up with {@link #cancel}.
+    * @param fileId The id of file to reserve
+    */
+   public void reserve(String fileId) throws InterruptedException{
+      if (ordered){
+         awaitFile(fileId);
+      }
+   }
+
+   /**
+    * Give up the reservation of a file without adding any request.
+    * @param fileId The id of reserved file
+    */
+   public synchronized void cancel(String fileId){
+      if (ordered && inFlightFiles.remove(fileId)){
+         notifyAll();
+      }
+   }
+
+   /**
+    * Add the request built for a change, whose file has been reserved.
+    * @param change The change request was built for
+    * @param acks The tracker of the feed change comes from
+    * @param request The request to add
+    */
+   public void add(Change change, DriveAckTracker acks, ActionRequest<?> request){
+      boolean flush = false;
+      synchronized (this){
+         if (adaptive){
+            pendingActions++;
+            flush = pendingActions >= targetActions;
+         }
+      }
+      long size = sizeOf(request);
+      memory.forceAcquire(size);
+      try{
+         bulkProcessor.add(request, new Item(change, acks, size));
+      } catch (RuntimeException re){
+         memory.release(size);
+         cancel(change.getFileId());
+         throw re;
+      }
+      if (flush){
+         bulkProcessor.flush();
+      }
+   }
+
+   /** Execute the requests waiting in processor. */
+   public void flush(){
+      bulkProcessor.flush();
+   }
+
+   /**
+    * Record that processor is executing a bulk, whether it was flushed by the sink or by reaching
+    * its size in bytes or its flush interval, so that adaptive mode counts actions from there.
+    * @param numberOfActions The number of actions of bulk
+    */
+   public synchronized void beforeBulk(int numberOfActions){
+      pendingActions = Math.max(0, pendingActions - numberOfActions);
+   }
+
+   /**
+    * Record the outcome of a bulk, releasing its files and adapting bulk size.
+    * @param payloads The payloads of bulk requests
+    * @param response The bulk response, null if bulk failed as a whole
+    * @param failure The bulk failure if any
+    * @param latencyMillis The time bulk took
+    */
+   public synchronized void afterBulk(List<Object> payloads, BulkResponse response, Throwable failure, long latencyMillis){
+      recordBulk(payloads, response, failure, latencyMillis);
+      if (payloads != null){
+         long size = 0;
+         for (Object payload : payloads){
+            if (payload instanceof Item){
+               size += ((Item)payload).size;
+            }
+         }
+         memory.release(size);
+      }
+      if (ordered && payloads != null){
+         for (Object payload : payloads){
+            if (payload instanceof Item){
+               inFlightFiles.remove(((Item)payload).getChange().getFileId());
+            }
+         }
+         notifyAll();
+      }
+      if (!adaptive){
+         return;
+      }
+      int previous = targetActions;
+      if (isRejected(response, failure)){
+         targetActions = Math.max(minActions, targetActions / 2);
+      } else if (failure == null && latencyMillis > targetLatencyMillis){
+         targetActions = Math.max(minActions, targetActions * 3 / 4);
+      } else if (failure == null){
+         targetActions = Math.min(maxActions, targetActions + Math.max(1, targetActions / 10));
+      }
+      if (targetActions != previous && logger.isDebugEnabled()){
+         logger.debug("Bulk took {} ms, now aiming at {} actions per bulk", latencyMillis, targetActions);
+      }
+   }
+
+   /**
+    * Write bulk counters.
+    * @param builder The builder to write into
+    * @param name The name of written object
+    * @return The builder
+    */
+   public XContentBuilder toXContent(XContentBuilder builder, String name) throws IOException{
+      builder.startObject(name)
+         .field("bulks", bulks.get())
+         .field("actions", actions.get())
+         .field("failed_bulks", failedBulks.get())
+         .field("failed_items", failedItems.get())
+         .field("rejections", rejections.get())
+         .field("target_actions", getTargetActions());
+      latency.toXContent(builder, "latency");
+      return builder.endObject();
+   }
+
+   private void recordBulk(List<Object> payloads, BulkResponse response, Throwable failure, long latencyMillis){
+      bulks.incrementAndGet();
+      actions.addAndGet(payloads != null ? payloads.size() : 0);
+      latency.record(latencyMillis);
+      if (failure != null){
+         failedBulks.incrementAndGet();
+      } else if (response != null && response.hasFailures()){
+         for (BulkItemResponse item : response.getItems()){
+            if (item.isFailed()){
+               failedItems.incrementAndGet();
+            }
+         }
+      }
+      if (isRejected(response, failure)){
+         rejections.incrementAndGet();
+      }
+   }
+
+   /** Estimate the memory held by a request, mostly its source. */
+   private static long sizeOf(ActionRequest<?> request){
+      if (request instanceof IndexRequest && ((IndexRequest)request).source() != null){
+         return REQUEST_OVERHEAD + ((IndexRequest)request).source().length();
+      }
+      if (request instanceof UpdateRequest && ((UpdateRequest)request).doc() != null 
+            && ((UpdateRequest)request).doc().source() != null){
+         return REQUEST_OVERHEAD + ((UpdateRequest)request).doc().source().length();
+      }
+      return REQUEST_OVERHEAD;
+   }
+
+   /** Tell if Elasticsearch refused bulk, or some of its items, for lack of capacity. */
+   private static boolean isRejected(BulkResponse response, Throwable failure){
+      if (failure != null){
+         return isRejected(ExceptionsHelper.status(failure));
+      }
+      if (response != null && response.hasFailures()){
+         for (BulkItemResponse item : response.getItems()){
+            if (item.isFailed() && item.getFailure() != null && isRejected(item.getFailure().getStatus())){
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+
+   /** Tell if a status means Elasticsearch is lacking capacity, bulk queue being full for instance. */
+   private static boolean isRejected(RestStatus status){
+      return status == RestStatus.TOO_MANY_REQUESTS || status == RestStatus.SERVICE_UNAVAILABLE;
+   }
+
+   /** Wait for previous request on a file to be answered, then mark file as in flight. */
+   private void awaitFile(String fileId) throws InterruptedException{
+      while (true){
+         synchronized (this){
+            if (inFlightFiles.add(fileId)){
+               return;
+            }
+         }
+         // Previous request may still be waiting in processor, make it go. This is done without
+         // holding our lock as processor may block until a bulk is answered.
+         bulkProcessor.flush();
+         synchronized (this){
+            while (inFlightFiles.contains(fileId)){
+               wait();
+            }
+         }
+      }
+   }
+}
@@ -0,0 +1,415 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.river;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.tika.detect.AutoDetectReader;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.apache.tika.sax.WriteOutContentHandler;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.xml.sax.SAXException;
+
+import com.github.chadwiki.elasticsearch.river.drive.connector.DriveContent;
+import com.github.chadwiki.elasticsearch.river.drive.connector.DriveLatencyHistogram;
+/**
+ * Turns downloaded Google Drive contents into indexable text, either by parsing them
+ * with Tika or, for contents that are already text, by simply decoding them. As Drive
+ * tells the type of contents, Tika is handed the parser of this type directly and only
+ * falls back to detection for types having no dedicated parser. Text exports are always
+ * UTF-8 while uploaded text files may use any charset, which is then told or detected.
+ * <p>
+ * Tika parsing is guarded by resource caps : contents larger than a maximum size are not
+ * parsed, and parsing runs on its own threads with a wall-clock timeout so that a
+ * pathological document cannot hold an extraction worker forever. Each extraction tells
+ * its outcome so that documents hitting a limit are indexed with metadata only and flagged.
+ * <p>
+ * Tika parsers ignore interruption, so a parsing abandoned after timeout goes on until it
+ * ends by itself. Parsing threads are bounded so that abandoned parsings cannot pile up and
+ * eat all cores : once every thread is busy, contents are not parsed and count as timed out.
+ * @author laurent
+ */
+public class DriveContentExtractor{
+
+   private static final ESLogger logger = Loggers.getLogger(DriveContentExtractor.class);
+
+   /** The charset of Google Drive text exports. */
+   public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+   /** Content was extracted completely. */
+   public static final String STATUS_OK = "ok";
+   /** Extracted text was cut at maximum length. */
+   public static final String STATUS_TRUNCATED = "truncated";
+   /** Content was larger than maximum size and was not parsed. */
+   public static final String STATUS_TOO_LARGE = "too_large";
+   /** Parsing did not end within timeout and was abandoned. */
+   public static final String STATUS_TIMEOUT = "timeout";
+   /** Parsing failed. */
+   public static final String STATUS_FAILED = "failed";
+
+   /** The text extracted from a content, with the outcome of extraction. */
+   public static class Extraction{
+      private final String text;
+      private final String status;
+
+      Extraction(String text, String status){
+         this.text = text;
+         this.status = status;
+      }
+
+      /** @return The extracted text, null if content could not be extracted */
+      public String getText(){
+         return text;
+      }
+      /** @return One of the STATUS_* values */
+      public String getStatus(){
+         return status;
+      }
+      /** @return true if content is to be indexed with metadata only */
+      public boolean isSkipped(){
+         return text == null;
+      }
+   }
+
+   private final int maxLength;
+   private final long maxInputSize;
+   private final long timeoutMillis;
+   /** Parsing threads, without any queue so that a content is rejected when all are busy. */
+   private final ExecutorService parsers;
+
+   private final AtomicLong extracted = new AtomicLong();
+   private final AtomicLong truncated = new AtomicLong();
+   private final AtomicLong tooLarge = new AtomicLong();
+   private final AtomicLong timedOut = new AtomicLong();
+   private final AtomicLong failed = new AtomicLong();
+   private final AtomicLong saturated = new AtomicLong();
+   /** Number of parsings abandoned after timeout that are still running. */
+   private final AtomicInteger abandoned = new AtomicInteger();
+   /** Extraction times by content type. */
+   private final ConcurrentMap<String, DriveLatencyHistogram> times = new ConcurrentHashMap<String, DriveLatencyHistogram>();
+
+   /**
+    * Build a new extractor.
+    * @param maxLength Maximum number of characters extracted from a content
+    * @param maxInputSize Maximum size in bytes of a content parsed with Tika
+    * @param timeoutMillis Maximum time spent parsing a content with Tika
+    * @param parserThreads Maximum number of threads parsing with Tika, including abandoned parsings
+    */
+   public DriveContentExtractor(int maxLength, long maxInputSize, long timeoutMillis, int parserThreads){
+      this.maxLength = maxLength;
+      this.maxInputSize = maxInputSize;
+      this.timeoutMillis = timeoutMillis;
+      this.parsers = new ThreadPoolExecutor(parserThreads, parserThreads, 0L, TimeUnit.MILLISECONDS,
+            new SynchronousQueue<Runnable>(), EsExecutors.daemonThreadFactory("drive_tika"));
+   }
+
+   /**
+    * Parse content using Tika, reading from spilled file if any. Parsing is abandoned
+    * after timeout, content is released by caller anyway. Content is not parsed if all
+    * parsing threads are busy with abandoned parsings.
+    * @param content The downloaded content
+    * @param contentType The mime type of content as told by Drive, may be null
+    * @param fileName The name of file, hinting detection when type has no dedicated parser
+    * @return The text extracted from content and the outcome of extraction
+    */
+   public Extraction parse(final DriveContent content, final String contentType, final String fileName) 
+         throws InterruptedException{
+      if (content.getLength() > maxInputSize){
+         return count(new Extraction(null, STATUS_TOO_LARGE));
+      }
+      // Running, done or abandoned.
+      final AtomicInteger state = new AtomicInteger(0);
+      Future<String> parsing = null;
+      try{
+         parsing = parsers.submit(new Callable<String>(){
+            @Override
+            public String call() throws Exception{
+               try{
+                  InputStream stream = content.isSpilled() ?
+                        TikaInputStream.get(content.getFile()) : TikaInputStream.get(content.toByteArray());
+                  return parse(stream, contentType, fileName);
+               } finally {
+                  if (!state.compareAndSet(0, 1)){
+                     abandoned.decrementAndGet();
+                  }
+               }
+            }
+         });
+      } catch (RejectedExecutionException ree){
+         logger.debug("All parsing threads are busy, {} parsings being abandoned", abandoned.get());
+         saturated.incrementAndGet();
+         return count(new Extraction(null, STATUS_TIMEOUT));
+      }
+      try{
+         return count(complete(parsing.get(timeoutMillis, TimeUnit.MILLISECONDS)));
+      } catch (TimeoutException te){
+         // Tika may ignore interruption, the thread then ends with the stream being closed by caller.
+         if (state.compareAndSet(0, 2)){
+            abandoned.incrementAndGet();
+         }
+         parsing.cancel(true);
+         return count(new Extraction(null, STATUS_TIMEOUT));
+      } catch (ExecutionException ee){
+         logger.debug("Failed to parse content: {}", ee.getCause());
+         return count(new Extraction(null, STATUS_FAILED));
+      } catch (InterruptedException ie){
+         parsing.cancel(true);
+         throw ie;
+      }
+   }
+
+   /**
+    * Decode a content that is already text, without going through Tika. Malformed input
+    * is replaced rather than rejected, and a leading byte order mark is not part of text.
+    * @param content The downloaded content
+    * @param charset The charset content is encoded with, unless told otherwise by a byte order mark
+    * @return The decoded text, truncated to maximum length
+    */
+   public Extraction decode(DriveContent content, Charset charset) throws IOException{
+      InputStream stream = new BufferedInputStream(content.openStream());
+      try{
+         Charset markCharset = readByteOrderMark(stream);
+         return read(newReader(stream, markCharset != null ? markCharset : charset), content);
+      } catch (IOException ioe){
+         stream.close();
+         throw ioe;
+      }
+   }
+
+   /**
+    * Decode a text content whose charset is not known for sure, like an uploaded text file.
+    * Charset is told by a byte order mark or by the charset parameter of content type, and
+    * is detected by Tika otherwise, falling back to UTF-8 if detection fails.
+    * @param content The downloaded content
+    * @param contentType The mime type of content, may be null
+    * @return The decoded text, truncated to maximum length
+    */
+   public Extraction decode(DriveContent content, String contentType) throws IOException{
+      InputStream stream = new BufferedInputStream(content.openStream());
+      try{
+         Charset charset = readByteOrderMark(stream);
+         if (charset == null){
+            charset = getCharsetParameter(contentType);
+         }
+         if (charset == null){
+            Metadata metadata = new Metadata();
+            if (contentType != null){
+               metadata.set(Metadata.CONTENT_TYPE, contentType);
+            }
+            try{
+               return read(new AutoDetectReader(stream, metadata), content);
+            } catch (TikaException te){
+               // Detectors have reset the stream, go on with the default charset.
+               logger.debug("Failed to detect charset of text content: {}", te.getMessage());
+               charset = UTF_8;
+            }
+         }
+         return read(newReader(stream, charset), content);
+      } catch (IOException ioe){
+         stream.close();
+         throw ioe;
+      }
+   }
+
+   /** Read text up to maximum length, closing reader. */
+   private Extraction read(Reader reader, DriveContent content) throws IOException{
+      try{
+         StringBuilder text = new StringBuilder((int)Math.min(content.getLength(), maxLength));
+         char[] buffer = new char[8192];
+         int len = reader.read(buffer, 0, Math.min(buffer.length, maxLength));
+         while (len > 0){
+            text.append(buffer, 0, len);
+            len = reader.read(buffer, 0, Math.min(buffer.length, maxLength - text.length()));
+         }
+         return count(complete(text.toString()));
+      } finally {
+         reader.close();
+      }
+   }
+
+   private static Reader newReader(InputStream stream, Charset charset){
+      return new InputStreamReader(stream, charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE));
+   }
+
+   /** Consume the byte order mark starting a stream if any, telling its charset. */
+   private static Charset readByteOrderMark(InputStream stream) throws IOException{
+      stream.mark(3);
+      int b1 = stream.read();
+      int b2 = stream.read();
+      if (b1 == 0xFE && b2 == 0xFF){
+         return Charset.forName("UTF-16BE");
+      }
+      if (b1 == 0xFF && b2 == 0xFE){
+         return Charset.forName("UTF-16LE");
+      }
+      if (b1 == 0xEF && b2 == 0xBB && stream.read() == 0xBF){
+         return UTF_8;
+      }
+      stream.reset();
+      return null;
+   }
+
+   /** @return The charset told by the charset parameter of a mime type, null if none or not supported */
+   private static Charset getCharsetParameter(String contentType){
+      MediaType type = contentType != null ? MediaType.parse(contentType) : null;
+      String name = type != null ? type.getParameters().get("charset") : null;
+      try{
+         return name != null && Charset.isSupported(name) ? Charset.forName(name) : null;
+      } catch (IllegalCharsetNameException icne){
+         return null;
+      }
+   }
+
+   /** @return A summary of extraction outcomes since extractor was built */
+   public String getStats(){
+      return extracted.get() + " extracted, " + truncated.get() + " truncated, " + tooLarge.get() + " too large, "
+            + timedOut.get() + " timed out (" + saturated.get() + " for lack of parsing thread), " + failed.get() + " failed, "
+            + abandoned.get() + " abandoned parsings still running";
+   }
+
+   /**
+    * Record the time spent extracting a content.
+    * @param contentType The type of content
+    * @param millis The time spent in milliseconds
+    */
+   public void recordTime(String contentType, long millis){
+      String type = contentType != null ? contentType.split(";")[0].trim() : "unknown";
+      DriveLatencyHistogram histogram = times.get(type);
+      if (histogram == null){
+         times.putIfAbsent(type, new DriveLatencyHistogram());
+         histogram = times.get(type);
+      }
+      histogram.record(millis);
+   }
+
+   /**
+    * Write extraction outcomes and times by content type.
+    * @param builder The builder to write into
+    * @param name The name of written object
+    * @return The builder
+    */
+   public XContentBuilder toXContent(XContentBuilder builder, String name) throws IOException{
+      builder.startObject(name)
+         .field("extracted", extracted.get())
+         .field("truncated", truncated.get())
+         .field("too_large", tooLarge.get())
+         .field("timed_out", timedOut.get())
+         .field("failed", failed.get())
+         .field("saturated", saturated.get())
+         .field("abandoned_running", abandoned.get())
+         .startObject("time_by_type");
+      for (Map.Entry<String, DriveLatencyHistogram> entry : new TreeMap<String, DriveLatencyHistogram>(times).entrySet()){
+         entry.getValue().toXContent(builder, entry.getKey());
+      }
+      return builder.endObject().endObject();
+   }
+
+   /** @return The number of contents that hit a limit or failed since extractor was built */
+   public long getSkippedCount(){
+      return tooLarge.get() + timedOut.get() + failed.get();
+   }
+
+   /** Stop parsing threads, running parsings are interrupted. */
+   public void close(){
+      parsers.shutdownNow();
+   }
+
+   /** Parse a stream with the parser of its type, or with detection if type has none. */
+   private String parse(InputStream stream, String contentType, String fileName) throws IOException, TikaException{
+      Metadata metadata = new Metadata();
+      if (contentType != null){
+         metadata.set(Metadata.CONTENT_TYPE, contentType);
+      }
+      if (fileName != null){
+         metadata.set(Metadata.RESOURCE_NAME_KEY, fileName);
+      }
+      Parser parser = TikaHolder.parser(contentType);
+      if (parser == null){
+         parser = TikaHolder.tika().getParser();
+      }
+      // Embedded documents have no declared type and still go through detection.
+      ParseContext context = new ParseContext();
+      context.set(Parser.class, TikaHolder.tika().getParser());
+      WriteOutContentHandler handler = new WriteOutContentHandler(maxLength);
+      try{
+         parser.parse(stream, new BodyContentHandler(handler), metadata, context);
+      } catch (SAXException se){
+         if (!handler.isWriteLimitReached(se)){
+            throw new TikaException("Unexpected SAX processing failure", se);
+         }
+      } finally {
+         stream.close();
+      }
+      return handler.toString();
+   }
+
+   /** Text reaching maximum length has most likely been cut. */
+   private Extraction complete(String text){
+      return new Extraction(text, text.length() >= maxLength ? STATUS_TRUNCATED : STATUS_OK);
+   }
+
+   private Extraction count(Extraction extraction){
+      if (STATUS_OK.equals(extraction.getStatus())){
+         extracted.incrementAndGet();
+      } else if (STATUS_TRUNCATED.equals(extraction.getStatus())){
+         extracted.incrementAndGet();
+         truncated.incrementAndGet();
+      } else if (STATUS_TOO_LARGE.equals(extraction.getStatus())){
+         tooLarge.incrementAndGet();
+      } else if (STATUS_TIMEOUT.equals(extraction.getStatus())){
+         timedOut.incrementAndGet();
+      } else {
+         failed.incrementAndGet();
+      }
+      return extraction;
+   }
+}
@@ -0,0 +1,329 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.river;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+import com.google.api.services.drive.model.Change;
+/**
+ * A staged pipeline for indexing the Google Drive changes of a feed. Downloads and content
+ * extractions run on worker pools shared by the feeds of the river so that network I/O and
+ * Tika parsing of different files overlap, built requests being handed to the bulk sink
+ * feeding the river's BulkProcessor. Each stage only accepts a bounded number of pending
+ * items : submitting blocks when downloads are behind and download workers block when
+ * extractions are behind.
+ * <p>
+ * When the same file appears several times, only the request built from its most recent
+ * change reaches the sink ; older ones still in flight are dropped.
+ * <p>
+ * Every submitted change is registered into an acknowledgement tracker. Requests reach the
+ * sink carrying their change as payload, for the bulk listener to acknowledge them ; changes
+ * that end up without any request are acknowledged by the pipeline itself.
+ * @param <T> The type of downloaded content handed from download to extraction stage
+ * @author laurent
+ */
+public class DriveIndexingPipeline<T>{
+
+   private static final ESLogger logger = Loggers.getLogger(DriveIndexingPipeline.class);
+
+   /**
+    * The work done at each stage of the pipeline.
+    * @param <T> The type of downloaded content
+    */
+   public interface Handler<T>{
+      /** Download content of the changed file. May return null if there's nothing to index. */
+      T download(Change change) throws Exception;
+      /** Build the request indexing downloaded content. May return null if there's nothing to index. */
+      ActionRequest<?> extract(Change change, T content) throws Exception;
+      /** Build the request removing a deleted file. */
+      ActionRequest<?> delete(Change change) throws Exception;
+      /** Release resources held by downloaded content once extraction is done or abandoned. */
+      void release(T content);
+   }
+
+   private final Handler<T> handler;
+   private final DriveBulkSink bulkSink;
+   private final DriveAckTracker acks;
+
+   private final ExecutorService downloaders;
+   private final ExecutorService extractors;
+   private final Semaphore downloadSlots;
+   private final Semaphore extractSlots;
+
+   /** The id of the most recent change submitted for each file id. Guarded by this. */
+   private final Map<String, Long> latestChanges = new HashMap<String, Long>();
+
+   private final Object inFlightMonitor = new Object();
+   private int inFlight = 0;
+
+   /**
+    * Build a new pipeline.
+    * @param handler The stages implementation
+    * @param bulkSink The sink receiving built requests
+    * @param acks The tracker of changes acknowledgements
+    * @param workers The worker pools running stages
+    */
+   public DriveIndexingPipeline(Handler<T> handler, DriveBulkSink bulkSink, DriveAckTracker acks, DriveWorkers workers){
+      this.handler = handler;
+      this.bulkSink = bulkSink;
+      this.acks = acks;
+      this.downloaders = workers.getDownloaders();
+      this.extractors = workers.getExtractors();
+      this.downloadSlots = workers.getDownloadSlots();
+      this.extractSlots = workers.getExtractSlots();
+   }
+
+   /**
+    * Submit a change for processing. Deletions are handed to the sink immediately, other
+    * changes are queued for download, blocking if the download stage is full.
+    * @param change The change to process
+    */
+   public void submit(final Change change) throws Exception{
+      if (Boolean.TRUE.equals(change.getDeleted())){
+         submitDirect(change, handler.delete(change));
+         return;
+      }
+      synchronized (this){
+         latestChanges.put(change.getFileId(), change.getId());
+      }
+
+      downloadSlots.acquire();
+      acks.register(change.getId());
+      incrementInFlight();
+      try{
+         downloaders.execute(new Runnable(){
+            @Override
+            public void run(){
+               download(change);
+            }
+         });
+      } catch (RuntimeException re){
+         downloadSlots.release();
+         acks.acknowledge(change.getId());
+         decrementInFlight();
+         throw re;
+      }
+   }
+
+   /**
+    * Submit a change whose request does not need any download nor extraction. Request is
+    * handed to the sink immediately, as the most recent change of its file.
+    * @param change The change to process
+    * @param request The request to send to the sink
+    */
+   public void submitDirect(Change change, ActionRequest<?> request) throws InterruptedException{
+      acks.register(change.getId());
+      synchronized (this){
+         latestChanges.put(change.getFileId(), change.getId());
+      }
+      sinkLatest(change, request);
+   }
+
+   /**
+    * Wait for all submitted changes to have reached the sink. Supersession tracking is
+    * reset afterwards so that next batch starts from a clean state.
+    */
+   public void awaitCompletion() throws InterruptedException{
+      synchronized (inFlightMonitor){
+         while (inFlight > 0){
+            inFlightMonitor.wait();
+         }
+      }
+      synchronized (this){
+         latestChanges.clear();
+      }
+   }
+
+   /** Download stage body, runs on a download worker. */
+   private void download(final Change change){
+      boolean handedOver = false;
+      boolean failed = false;
+      try{
+         if (isSuperseded(change)){
+            return;
+         }
+         final T content = handler.download(change);
+         if (content == null){
+            return;
+         }
+         extractSlots.acquire();
+         try{
+            extractors.execute(new ExtractTask(change, content));
+            handedOver = true;
+         } catch (RuntimeException re){
+            extractSlots.release();
+            handler.release(content);
+            throw re;
+         }
+      } catch (InterruptedException ie){
+         failed = true;
+         Thread.currentThread().interrupt();
+      } catch (Exception e){
+         failed = true;
+         logger.warn("Can not download " + change.getFile().getTitle() + " : " + e.getMessage());
+      } finally {
+         downloadSlots.release();
+         if (!handedOver){
+            // A failed download holds the watermark back so that next scan retries it.
+            if (failed){
+               acks.fail(change.getId());
+            } else {
+               acks.acknowledge(change.getId());
+            }
+            decrementInFlight();
+         }
+      }
+   }
+
+   /** An extraction waiting for a worker, releasing its content if workers are closed before it runs. */
+   private class ExtractTask implements Runnable, DriveWorkers.Abandonable{
+      private final Change change;
+      private final T content;
+
+      ExtractTask(Change change, T content){
+         this.change = change;
+         this.content = content;
+      }
+
+      @Override
+      public void run(){
+         extract(change, content);
+      }
+
+      @Override
+      public void abandon(){
+         // Change is left unacknowledged so that it is replayed.
+         handler.release(content);
+         extractSlots.release();
+         decrementInFlight();
+      }
+   }
+
+   /** Extraction stage body, runs on an extraction worker. */
+   private void extract(Change change, T content){
+      boolean sunk = false;
+      boolean failed = false;
+      try{
+         if (isSuperseded(change)){
+            return;
+         }
+         ActionRequest<?> request = handler.extract(change, content);
+         if (request != null){
+            // Change is acknowledged by sinking from now on.
+            sunk = true;
+            sinkLatest(change, request);
+         }
+      } catch (Exception e){
+         // Once sunk, the change is acknowledged or failed by the sink.
+         failed = !sunk;
+         logger.warn("Can not index " + change.getFile().getTitle() + " : " + e.getMessage());
+      } finally {
+         if (failed){
+            acks.fail(change.getId());
+         } else if (!sunk){
+            acks.acknowledge(change.getId());
+         }
+         handler.release(content);
+         extractSlots.release();
+         decrementInFlight();
+      }
+   }
+
+   /** Tell if a more recent change has been submitted for the same file. */
+   private synchronized boolean isSuperseded(Change change){
+      Long latest = latestChanges.get(change.getFileId());
+      boolean superseded = latest != null && !latest.equals(change.getId());
+      if (superseded && logger.isDebugEnabled()){
+         logger.debug("Change {} on file {} is superseded by change {}", change.getId(), change.getFileId(), latest);
+      }
+      return superseded;
+   }
+
+   /**
+    * Hand a request to the bulk sink unless a more recent change of its file has been submitted
+    * meanwhile, in which case change is acknowledged. The file is reserved in the sink beforehand,
+    * without holding the pipeline lock as reserving may wait for a bulk to be answered ; the
+    * supersession check and the hand-over then happen together under lock.
+    */
+   private void sinkLatest(Change change, ActionRequest<?> request) throws InterruptedException{
+      if (request == null || isSuperseded(change)){
+         acks.acknowledge(change.getId());
+         return;
+      }
+      try{
+         bulkSink.reserve(change.getFileId());
+      } catch (InterruptedException ie){
+         acks.acknowledge(change.getId());
+         throw ie;
+      }
+      boolean sunk = false;
+      try{
+         synchronized (this){
+            if (!isSuperseded(change)){
+               sunk = true;
+               sink(change, request);
+            }
+         }
+      } finally {
+         if (!sunk){
+            bulkSink.cancel(change.getFileId());
+            acks.acknowledge(change.getId());
+         }
+      }
+   }
+
+   /**
+    * Hand a request to the bulk sink, with its change for acknowledgement. Callers hold
+    * the pipeline lock and the reservation of file to preserve ordering.
+    */
+   private void sink(Change change, ActionRequest<?> request){
+      if (request == null){
+         acks.acknowledge(change.getId());
+         return;
+      }
+      try{
+         bulkSink.add(change, acks, request);
+      } catch (RuntimeException re){
+         acks.fail(change.getId());
+         throw re;
+      }
+   }
+
+   private void incrementInFlight(){
+      synchronized (inFlightMonitor){
+         inFlight++;
+      }
+   }
+
+   private void decrementInFlight(){
+      synchronized (inFlightMonitor){
+         inFlight--;
+         if (inFlight == 0){
+            inFlightMonitor.notifyAll();
+         }
+      }
+   }
+}
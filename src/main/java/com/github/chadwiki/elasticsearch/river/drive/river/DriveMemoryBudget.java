@@ -0,0 +1,163 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.river;
+
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+/**
+ * A node level budget of the memory held by Google Drive rivers in flight : downloaded
+ * contents, extracted text and requests waiting in bulks. Only downloads wait for memory
+ * to be available, later stages always get it so that content already downloaded can make
+ * its way out of the river. When budget is exhausted, rivers thus slow down until bulks are
+ * answered rather than running out of memory.
+ * @author laurent
+ */
+public class DriveMemoryBudget{
+
+   /** The node setting holding budget size, in bytes or as a percentage of heap. */
+   public static final String MEMORY_BUDGET_SETTING = "drive.memory_budget";
+
+   private final long capacity;
+   private long used = 0;
+
+   @Inject
+   public DriveMemoryBudget(Settings settings){
+      this(settings.getAsMemory(MEMORY_BUDGET_SETTING, "10%").bytes());
+   }
+
+   /**
+    * Build a new budget.
+    * @param capacity The number of bytes that may be held at once
+    */
+   public DriveMemoryBudget(long capacity){
+      this.capacity = Math.max(1, capacity);
+   }
+
+   /** @return The number of bytes that may be held at once */
+   public long getCapacity(){
+      return capacity;
+   }
+
+   /** @return The number of bytes currently held */
+   public synchronized long getUsed(){
+      return used;
+   }
+
+   /** @return A new account for tracking what a river holds */
+   public Account newAccount(){
+      return new Account();
+   }
+
+   /**
+    * Wait for memory to be available, then take it. A request larger than the whole budget
+    * is granted the whole budget once nothing else is held.
+    * @param bytes The number of bytes wanted
+    * @return The number of bytes actually taken
+    */
+   private synchronized long acquire(long bytes) throws InterruptedException{
+      long granted = Math.min(bytes, capacity);
+      while (used + granted > capacity){
+         wait();
+      }
+      used += granted;
+      return granted;
+   }
+
+   /** Take memory without waiting, possibly going beyond capacity. */
+   private synchronized void forceAcquire(long bytes){
+      used += bytes;
+   }
+
+   private synchronized void release(long bytes){
+      used -= bytes;
+      notifyAll();
+   }
+
+   /**
+    * The memory held by a river, so that what a closed river still holds is given back
+    * at once rather than leaking from the node budget.
+    */
+   public class Account{
+      private long held = 0;
+
+      /**
+       * Wait for memory to be available, then take it.
+       * @param bytes The number of bytes wanted
+       * @return The number of bytes actually taken, to be released later
+       */
+      public long acquire(long bytes) throws InterruptedException{
+         long granted = DriveMemoryBudget.this.acquire(bytes);
+         synchronized (this){
+            held += granted;
+         }
+         return granted;
+      }
+
+      /**
+       * Take memory without waiting, for content that is already in memory.
+       * @param bytes The number of bytes taken
+       */
+      public void forceAcquire(long bytes){
+         DriveMemoryBudget.this.forceAcquire(bytes);
+         synchronized (this){
+            held += bytes;
+         }
+      }
+
+      /**
+       * Give memory back.
+       * @param bytes The number of bytes released
+       */
+      public void release(long bytes){
+         synchronized (this){
+            bytes = Math.min(bytes, held);
+            held -= bytes;
+         }
+         DriveMemoryBudget.this.release(bytes);
+      }
+
+      /**
+       * Adjust an estimated reservation to the actual size.
+       * @param reserved The number of bytes taken
+       * @param actual The number of bytes actually held
+       */
+      public void resize(long reserved, long actual){
+         if (actual > reserved){
+            forceAcquire(actual - reserved);
+         } else if (actual < reserved){
+            release(reserved - actual);
+         }
+      }
+
+      /** @return The number of bytes currently held through this account */
+      public synchronized long getHeld(){
+         return held;
+      }
+
+      /** Give back everything held through this account. */
+      public void close(){
+         long bytes;
+         synchronized (this){
+            bytes = held;
+            held = 0;
+         }
+         DriveMemoryBudget.this.release(bytes);
+      }
+   }
+}
@@ -18,24 +18,48 @@
  */
 package com.github.chadwiki.elasticsearch.river.drive.river;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.tika.metadata.Metadata;
 import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.admin.indices.mapping.put.PutMappingResponse;
 import org.elasticsearch.action.bulk.*;
 import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.ClusterState;
 import org.elasticsearch.cluster.block.ClusterBlockException;
 import org.elasticsearch.cluster.metadata.IndexMetaData;
 import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.inject.Inject;
-import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.settings.SettingsException;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.get.GetField;
 import org.elasticsearch.indices.IndexAlreadyExistsException;
 import org.elasticsearch.river.AbstractRiverComponent;
 import org.elasticsearch.river.River;
@@ -43,69 +67,137 @@ import org.elasticsearch.river.RiverName;
 import org.elasticsearch.river.RiverSettings;
 
 import com.github.chadwiki.elasticsearch.river.drive.connector.DriveChanges;
+import com.github.chadwiki.elasticsearch.river.drive.connector.DriveChangesStream;
+import com.github.chadwiki.elasticsearch.river.drive.connector.DriveChannel;
 import com.github.chadwiki.elasticsearch.river.drive.connector.DriveConnector;
-import com.github.chadwiki.elasticsearch.river.drive.river.TikaHolder;
+import com.github.chadwiki.elasticsearch.river.drive.connector.DriveContent;
+import com.github.chadwiki.elasticsearch.river.drive.connector.DriveExportFormats;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.services.drive.model.Change;
 import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 /**
  * A River component for scanning and indexing Google Drive documents into Elasticsearch.
+ * A river may serve many feeds, each one scanning a folder of some account : feeds are
+ * scanned by a bounded pool of threads and share the worker pools and the bulk processor
+ * of the river.
  * @author laurent
  */
 public class DriveRiver extends AbstractRiverComponent implements River{
    
+   /** The pseudo folder id standing for the whole drive when no folder is specified. */
+   private static final String ALL_FILES = "*";
+   
+   /** The number of folders crawled between two checkpoints, per crawl worker. */
+   private static final int CRAWL_WAVE_FACTOR = 8;
+   
+   /** The default maximum number of feeds scanned at the same time. */
+   private static final int DEFAULT_SCAN_THREADS = 4;
+   
+   /** The number of Tika threads on top of extraction workers, left for parsings abandoned after timeout. */
+   private static final int PARSER_THREADS_SLACK = 2;
+   
+   /** The number of times a notification channel is checked for renewal during its time to live. */
+   private static final int CHANNEL_CHECKS_PER_TTL = 8;
+   
+   /** The status of a river stopped through management actions. */
+   public static final String STATUS_STOPPED = "STOPPED";
+   
    private final Client client;
    
+   private final DriveRiverRegistry registry;
+   
+   private final DriveMemoryBudget memoryBudget;
+   
+   /** The memory held by this river out of node budget. */
+   private volatile DriveMemoryBudget.Account memory;
+   
    private final String indexName;
 
    private final String typeName;
 
    private final int bulkSize;
    
-   private volatile Thread feedThread;
+   private final ByteSizeValue bulkSizeBytes;
+   
+   private final TimeValue flushInterval;
+   
+   private final int concurrentRequests;
+   
+   private final boolean adaptiveBulkSize;
+   
+   private final TimeValue bulkTargetLatency;
+   
+   private final int scanThreads;
+   
+   private volatile ScheduledExecutorService scanners;
+   
+   private volatile ScheduledExecutorService channelRenewer;
 
    private volatile BulkProcessor bulkProcessor;
 
+   private volatile DriveBulkSink bulkSink;
+
+   private volatile DriveWorkers workers;
+
    private volatile boolean closed = false;
    
-   private final DriveRiverFeedDefinition feedDefinition;
+   /** Last known status, pushed by management actions on this node or read by the feeds. */
+   private volatile String status;
+   
+   /** The top-level settings, holding river-wide worker settings and the defaults of feeds. */
+   private final DriveRiverFeedDefinition riverDefinition;
    
-   private final DriveConnector drive;
+   private final List<DriveFeed> feeds = new ArrayList<DriveFeed>();
+   
+   private volatile DriveContentExtractor extractor;
+   
+   private volatile DriveTextCache textCache;
    
    @Inject
    @SuppressWarnings({ "unchecked" })
-   protected DriveRiver(RiverName riverName, RiverSettings settings, Client client) throws Exception{
+   protected DriveRiver(RiverName riverName, RiverSettings settings, Client client, DriveRiverRegistry registry,
+         DriveMemoryBudget memoryBudget) throws Exception{
       super(riverName, settings);
       this.client = client;
+      this.registry = registry;
+      this.memoryBudget = memoryBudget;
       
       // Deal with connector settings.
+      List<DriveRiverFeedDefinition> feedDefinitions = new ArrayList<DriveRiverFeedDefinition>();
+      boolean multiFeeds = false;
       if (settings.settings().containsKey("google-drive")){
          Map<String, Object> feed = (Map<String, Object>)settings.settings().get("google-drive");
+         riverDefinition = buildFeedDefinition(feed);
          
-         // Retrieve feed settings.
-         String feedname = XContentMapValues.nodeStringValue(feed.get("name"), null);
-         String folder = XContentMapValues.nodeStringValue(feed.get("folder"), null);
-         int updateRate = XContentMapValues.nodeIntegerValue(feed.get("update_rate"), 15 * 60 * 1000);
-         boolean jsonSupport = XContentMapValues.nodeBooleanValue(feed.get("json_support"), false);
-         
-         String[] includes = DriveRiverUtil.buildArrayFromSettings(settings.settings(), "google-drive.includes");
-         String[] excludes = DriveRiverUtil.buildArrayFromSettings(settings.settings(), "google-drive.excludes");
-         
-         // Retrieve connection settings.
-         String clientId = XContentMapValues.nodeStringValue(feed.get("clientId"), null);
-         String clientSecret = XContentMapValues.nodeStringValue(feed.get("clientSecret"), null);
-         String refreshToken = XContentMapValues.nodeStringValue(feed.get("refreshToken"), null);
-         
-         feedDefinition = new DriveRiverFeedDefinition(feedname, folder, updateRate, 
-               Arrays.asList(includes), Arrays.asList(excludes), clientId, clientSecret, refreshToken, jsonSupport);
+         // Each feed of the list inherits top-level settings it does not override.
+         if (XContentMapValues.isArray(feed.get("feeds"))){
+            multiFeeds = true;
+            for (Object feedSettings : (List<Object>)feed.get("feeds")){
+               Map<String, Object> merged = new HashMap<String, Object>(feed);
+               merged.remove("feeds");
+               merged.putAll((Map<String, Object>)feedSettings);
+               feedDefinitions.add(buildFeedDefinition(merged));
+            }
+         } else {
+            feedDefinitions.add(riverDefinition);
+         }
+         scanThreads = Math.max(1, XContentMapValues.nodeIntegerValue(feed.get("scan_threads"), 
+               Math.min(feedDefinitions.size(), DEFAULT_SCAN_THREADS)));
       } else {
          logger.error("You didn't define the google-drive settings. Exiting... See https://github.com/lbroudoux/es-google-drive-river");
          indexName = null;
          typeName = null;
          bulkSize = 100;
-         feedDefinition = null;
-         drive = null;
+         bulkSizeBytes = null;
+         flushInterval = null;
+         concurrentRequests = 1;
+         adaptiveBulkSize = false;
+         bulkTargetLatency = null;
+         scanThreads = 1;
+         riverDefinition = null;
          return;
       }
       
@@ -116,15 +208,110 @@ public class DriveRiver extends AbstractRiverComponent implements River{
          indexName = XContentMapValues.nodeStringValue(indexSettings.get("index"), riverName.name());
          typeName = XContentMapValues.nodeStringValue(indexSettings.get("type"), DriveRiverUtil.INDEX_TYPE_DOC);
          bulkSize = XContentMapValues.nodeIntegerValue(indexSettings.get("bulk_size"), 100);
+         bulkSizeBytes = ByteSizeValue.parseBytesSizeValue(XContentMapValues.nodeStringValue(
+               indexSettings.get("bulk_size_bytes"), null), new ByteSizeValue(5, ByteSizeUnit.MB));
+         flushInterval = TimeValue.parseTimeValue(XContentMapValues.nodeStringValue(
+               indexSettings.get("flush_interval"), null), TimeValue.timeValueSeconds(5));
+         concurrentRequests = Math.max(0, XContentMapValues.nodeIntegerValue(indexSettings.get("concurrent_requests"), 1));
+         adaptiveBulkSize = XContentMapValues.nodeBooleanValue(indexSettings.get("adaptive_bulk_size"), false);
+         bulkTargetLatency = TimeValue.parseTimeValue(XContentMapValues.nodeStringValue(
+               indexSettings.get("bulk_target_latency"), null), TimeValue.timeValueSeconds(1));
       } else {
          indexName = riverName.name();
          typeName = DriveRiverUtil.INDEX_TYPE_DOC;
          bulkSize = 100;
+         bulkSizeBytes = new ByteSizeValue(5, ByteSizeUnit.MB);
+         flushInterval = TimeValue.timeValueSeconds(5);
+         concurrentRequests = 1;
+         adaptiveBulkSize = false;
+         bulkTargetLatency = TimeValue.timeValueSeconds(1);
       }
       
-      // We need to connect to Google Drive.
-      drive = new DriveConnector(feedDefinition.getClientId(), feedDefinition.getClientSecret(), feedDefinition.getRefreshToken());
-      drive.connectUserDrive(feedDefinition.getFolder());
+      // We need to connect to Google Drive, once per feed. A single feed keeps the river
+      // documents of previous versions while feeds of a list get their own ones.
+      for (int i = 0; i < feedDefinitions.size(); i++){
+         DriveRiverFeedDefinition feedDefinition = feedDefinitions.get(i);
+         String docSuffix = "";
+         if (multiFeeds){
+            docSuffix = "_" + (feedDefinition.getFeedname() != null ? feedDefinition.getFeedname() : String.valueOf(i));
+         }
+         feeds.add(new DriveFeed(feedDefinition, docSuffix));
+      }
+   }
+   
+   /** Build the definition of a feed from its settings. */
+   @SuppressWarnings({ "unchecked" })
+   private DriveRiverFeedDefinition buildFeedDefinition(Map<String, Object> feed){
+      // Retrieve feed settings.
+      String feedname = XContentMapValues.nodeStringValue(feed.get("name"), null);
+      String folder = XContentMapValues.nodeStringValue(feed.get("folder"), null);
+      int updateRate = XContentMapValues.nodeIntegerValue(feed.get("update_rate"), 15 * 60 * 1000);
+      int maxUpdateRate = XContentMapValues.nodeIntegerValue(feed.get("max_update_rate"), updateRate);
+      // Adaptive polling is opt-in : without bounds, feed scans every update_rate.
+      int minUpdateRate = XContentMapValues.nodeIntegerValue(feed.get("min_update_rate"), Math.min(updateRate, maxUpdateRate));
+      boolean jsonSupport = XContentMapValues.nodeBooleanValue(feed.get("json_support"), false);
+      
+      String[] includes = DriveRiverUtil.buildArrayFromSettings(feed, "includes");
+      String[] excludes = DriveRiverUtil.buildArrayFromSettings(feed, "excludes");
+      
+      // Retrieve connection settings.
+      String clientId = XContentMapValues.nodeStringValue(feed.get("clientId"), null);
+      String clientSecret = XContentMapValues.nodeStringValue(feed.get("clientSecret"), null);
+      String refreshToken = XContentMapValues.nodeStringValue(feed.get("refreshToken"), null);
+      
+      DriveRiverFeedDefinition feedDefinition = new DriveRiverFeedDefinition(feedname, folder, updateRate, 
+            Arrays.asList(includes), Arrays.asList(excludes), clientId, clientSecret, refreshToken, jsonSupport);
+      
+      feedDefinition.setMinUpdateRate(minUpdateRate);
+      feedDefinition.setMaxUpdateRate(maxUpdateRate);
+      
+      // Retrieve indexing pipeline settings.
+      feedDefinition.setDownloadWorkers(Math.max(1, XContentMapValues.nodeIntegerValue(
+            feed.get("download_workers"), feedDefinition.getDownloadWorkers())));
+      feedDefinition.setExtractWorkers(Math.max(1, XContentMapValues.nodeIntegerValue(
+            feed.get("extract_workers"), feedDefinition.getExtractWorkers())));
+      feedDefinition.setQueueSize(Math.max(0, XContentMapValues.nodeIntegerValue(
+            feed.get("queue_size"), feedDefinition.getQueueSize())));
+      feedDefinition.setCrawlWorkers(Math.max(1, XContentMapValues.nodeIntegerValue(
+            feed.get("crawl_workers"), feedDefinition.getCrawlWorkers())));
+      feedDefinition.setSpillThreshold(ByteSizeValue.parseBytesSizeValue(XContentMapValues.nodeStringValue(
+            feed.get("spill_threshold"), null), new ByteSizeValue(feedDefinition.getSpillThreshold())).bytes());
+      feedDefinition.setTempDir(XContentMapValues.nodeStringValue(feed.get("temp_dir"), null));
+      feedDefinition.setExtraFileFields(XContentMapValues.nodeStringValue(feed.get("file_fields"), null));
+      double maxRequestsPerSecond = XContentMapValues.nodeDoubleValue(
+            feed.get("max_requests_per_second"), feedDefinition.getMaxRequestsPerSecond());
+      if (!(maxRequestsPerSecond > 0)){
+         throw new SettingsException("max_requests_per_second should be positive, got [" + maxRequestsPerSecond + "]");
+      }
+      feedDefinition.setMaxRequestsPerSecond(maxRequestsPerSecond);
+      feedDefinition.setMaxRetries(XContentMapValues.nodeIntegerValue(
+            feed.get("max_retries"), feedDefinition.getMaxRetries()));
+      feedDefinition.setPushAddress(XContentMapValues.nodeStringValue(feed.get("push_address"), null));
+      feedDefinition.setPushToken(XContentMapValues.nodeStringValue(feed.get("push_token"), null));
+      feedDefinition.setPushChannelTtl(TimeValue.parseTimeValue(XContentMapValues.nodeStringValue(
+            feed.get("push_channel_ttl"), null), new TimeValue(feedDefinition.getPushChannelTtl())).millis());
+      feedDefinition.setExtractTimeout(TimeValue.parseTimeValue(XContentMapValues.nodeStringValue(
+            feed.get("extract_timeout"), null), new TimeValue(feedDefinition.getExtractTimeout())).millis());
+      feedDefinition.setMaxExtractSize(ByteSizeValue.parseBytesSizeValue(XContentMapValues.nodeStringValue(
+            feed.get("max_extract_size"), null), new ByteSizeValue(feedDefinition.getMaxExtractSize())).bytes());
+      feedDefinition.setMaxExtractedChars(Math.max(1, XContentMapValues.nodeIntegerValue(
+            feed.get("max_extracted_chars"), feedDefinition.getMaxExtractedChars())));
+      feedDefinition.setTextCacheDir(XContentMapValues.nodeStringValue(feed.get("text_cache_dir"), null));
+      feedDefinition.setTextCacheSize(ByteSizeValue.parseBytesSizeValue(XContentMapValues.nodeStringValue(
+            feed.get("text_cache_size"), null), new ByteSizeValue(feedDefinition.getTextCacheSize())).bytes());
+      feedDefinition.setApiRootUrl(XContentMapValues.nodeStringValue(feed.get("api_root_url"), null));
+      feedDefinition.setTokenServerUrl(XContentMapValues.nodeStringValue(feed.get("token_server_url"), null));
+      if (feed.get("export_formats") instanceof Map){
+         Map<String, Object> exportFormats = (Map<String, Object>)feed.get("export_formats");
+         for (Map.Entry<String, Object> entry : exportFormats.entrySet()){
+            // Mime types hold dots so we cannot extract formats using a settings path.
+            String[] formats = XContentMapValues.isArray(entry.getValue()) ?
+                  ((List<String>)entry.getValue()).toArray(new String[0]) :
+                  Strings.commaDelimitedListToStringArray(XContentMapValues.nodeStringValue(entry.getValue(), null));
+            feedDefinition.getExportFormats().put(entry.getKey(), Arrays.asList(Strings.trimArrayElements(formats)));
+         }
+      }
+      return feedDefinition;
    }
 
    @Override
@@ -150,7 +337,11 @@ public class DriveRiver extends AbstractRiverComponent implements River{
       
       try{
          // If needed, we create the new mapping for files
-         if (!feedDefinition.isJsonSupport()) {
+         boolean jsonSupport = true;
+         for (DriveFeed feed : feeds){
+            jsonSupport &= feed.feedDefinition.isJsonSupport();
+         }
+         if (!jsonSupport) {
             pushMapping(indexName, typeName, DriveRiverUtil.buildDriveFileMapping(typeName));
          }
       } catch (Exception e) {
@@ -160,15 +351,21 @@ public class DriveRiver extends AbstractRiverComponent implements River{
       }
 
       // Creating bulk processor
+      final Map<Long, Long> bulkStartTimes = new ConcurrentHashMap<Long, Long>();
       this.bulkProcessor = BulkProcessor.builder(client, new BulkProcessor.Listener() {
          @Override
          public void beforeBulk(long id, BulkRequest request) {
             logger.debug("Going to execute new bulk composed of {} actions", request.numberOfActions());
+            bulkStartTimes.put(id, System.currentTimeMillis());
+            bulkSink.beforeBulk(request.numberOfActions());
          }
 
          @Override
          public void afterBulk(long id, BulkRequest request, BulkResponse response) {
             logger.debug("Executed bulk composed of {} actions", request.numberOfActions());
+            bulkSink.afterBulk(request.payloads(), response, null, bulkLatency(id));
+            // Item failures are not retried, their changes are acknowledged as well.
+            acknowledge(request.payloads(), false);
             if (response.hasFailures()) {
                logger.warn("There was failures while executing bulk", response.buildFailureMessage());
                if (logger.isDebugEnabled()) {
@@ -185,15 +382,58 @@ public class DriveRiver extends AbstractRiverComponent implements River{
          @Override
          public void afterBulk(long id, BulkRequest request, Throwable throwable) {
             logger.warn("Error executing bulk", throwable);
+            bulkSink.afterBulk(request.payloads(), null, throwable, bulkLatency(id));
+            acknowledge(request.payloads(), true);
+         }
+         
+         private long bulkLatency(long id){
+            Long start = bulkStartTimes.remove(id);
+            return start != null ? System.currentTimeMillis() - start : 0;
          }
       })
-            .setBulkActions(bulkSize)
+            // In adaptive mode, sink decides when to flush below a hard limit of actions.
+            .setBulkActions(adaptiveBulkSize ? bulkSize * 10 : bulkSize)
+            .setBulkSize(bulkSizeBytes)
+            .setFlushInterval(flushInterval)
+            .setConcurrentRequests(concurrentRequests)
             .build();
+      memory = memoryBudget.newAccount();
+      this.bulkSink = new DriveBulkSink(bulkProcessor, memory, concurrentRequests, bulkSize, 
+            adaptiveBulkSize, bulkTargetLatency.millis());
 
-      // We create as many Threads as there are feeds.
-      feedThread = EsExecutors.daemonThreadFactory(settings.globalSettings(),"fs_slurper")
-            .newThread(new DriveScanner(feedDefinition));
-      feedThread.start();
+      // Feeds share the worker pools, the content extractor and a bounded number of scanning threads.
+      extractor = new DriveContentExtractor(riverDefinition.getMaxExtractedChars(), 
+            riverDefinition.getMaxExtractSize(), riverDefinition.getExtractTimeout(), 
+            riverDefinition.getExtractWorkers() + PARSER_THREADS_SLACK);
+      if (riverDefinition.getTextCacheDir() != null){
+         try{
+            textCache = new DriveTextCache(new java.io.File(riverDefinition.getTextCacheDir()), riverDefinition.getTextCacheSize());
+         } catch (IOException ioe){
+            logger.warn("Failed to open text cache, extracted text will not be cached: {}", ioe.getMessage());
+         }
+      }
+      workers = new DriveWorkers(settings.globalSettings(), riverDefinition.getDownloadWorkers(), 
+            riverDefinition.getExtractWorkers(), riverDefinition.getCrawlWorkers(), scanThreads, riverDefinition.getQueueSize());
+      scanners = Executors.newScheduledThreadPool(scanThreads,
+            EsExecutors.daemonThreadFactory(settings.globalSettings(), "fs_slurper"));
+      for (DriveFeed feed : feeds){
+         feed.pipeline = new DriveIndexingPipeline<DriveContent>(feed, bulkSink, feed.acks, workers);
+         feed.drive.setChangesPrefetcher(workers.getChangesPrefetchers());
+      }
+      registry.register(this);
+      for (DriveFeed feed : feeds){
+         feed.schedule(0);
+      }
+      // Channels are renewed apart from scans, that may last longer than channels live.
+      for (DriveFeed feed : feeds){
+         if (feed.feedDefinition.getPushAddress() != null){
+            if (channelRenewer == null){
+               channelRenewer = Executors.newSingleThreadScheduledExecutor(
+                     EsExecutors.daemonThreadFactory(settings.globalSettings(), "drive_channel_renewer"));
+            }
+            feed.scheduleChannelRenewal();
+         }
+      }
    }
 
    @Override
@@ -202,10 +442,124 @@ public class DriveRiver extends AbstractRiverComponent implements River{
          logger.info("Closing google drive river");
       }
       closed = true;
+      registry.unregister(this);
 
-      // We have to close the Thread.
-      if (feedThread != null){
-         feedThread.interrupt();
+      // We have to stop the scanning Threads.
+      if (scanners != null){
+         scanners.shutdownNow();
+      }
+      if (channelRenewer != null){
+         channelRenewer.shutdownNow();
+      }
+      if (workers != null){
+         workers.close();
+      }
+      if (extractor != null){
+         extractor.close();
+      }
+      // Pending requests and contents are dropped, give their memory back to the node.
+      if (memory != null){
+         memory.close();
+      }
+      // Do not let Drive push notifications to a closed river.
+      for (DriveFeed feed : feeds){
+         feed.stopChannels();
+      }
+   }
+   
+   /**
+    * Update river status after a management action, taking effect at once : a stopped river
+    * stops submitting changes without waiting for its current scan to end.
+    * @param status The new status
+    */
+   public void updateStatus(String status){
+      this.status = status;
+      if (!STATUS_STOPPED.equals(status)){
+         wakeUp();
+      }
+   }
+   
+   /** Start a scan of every feed at once, or right after the current one for feeds being scanned. */
+   public void wakeUp(){
+      for (DriveFeed feed : feeds){
+         feed.wakeUp();
+      }
+   }
+   
+   /**
+    * Rebuild all the documents of every feed, as after a mapping change. Feeds forget their
+    * progress and crawl again, taking text from cache when possible rather than downloading
+    * and parsing files again.
+    */
+   public void reindex(){
+      for (DriveFeed feed : feeds){
+         feed.reindex();
+      }
+   }
+   
+   /**
+    * Write the counters of this river : Drive calls and downloads of each feed, changes
+    * handling and lag of each feed, content extraction, bulks and memory.
+    * @param builder The builder to write into
+    * @return The builder
+    */
+   public XContentBuilder statsToXContent(XContentBuilder builder) throws IOException{
+      builder.field("river", riverName.name())
+         .field("status", status)
+         .startArray("feeds");
+      for (DriveFeed feed : feeds){
+         feed.statsToXContent(builder);
+      }
+      builder.endArray();
+      if (extractor != null){
+         extractor.toXContent(builder, "extraction");
+      }
+      if (bulkSink != null){
+         bulkSink.toXContent(builder, "bulk");
+      }
+      builder.startObject("memory")
+            .field("held_bytes", memory != null ? memory.getHeld() : 0)
+            .field("node_used_bytes", memoryBudget.getUsed())
+            .field("node_budget_bytes", memoryBudget.getCapacity())
+         .endObject();
+      return builder;
+   }
+   
+   /**
+    * Handle a notification pushed by Drive, waking up the feed owning channel if some changes
+    * happened. Notifications are authenticated by the secret token shared by the channels of a feed.
+    * @param channelId The id of channel notification was sent on
+    * @param token The token of channel notification was sent on
+    * @param state The kind of notification, 'sync' when channel has just been opened
+    * @return false if notification does not carry the token of one of our feeds
+    */
+   public boolean onNotification(String channelId, String token, String state){
+      boolean accepted = false;
+      for (DriveFeed feed : feeds){
+         accepted |= feed.onNotification(channelId, token, state);
+      }
+      return accepted;
+   }
+   
+   /** @return true if river is neither closed nor stopped */
+   private boolean isRunning(){
+      return !closed && !STATUS_STOPPED.equals(status);
+   }
+   
+   /** Acknowledge the changes carried as payloads by a bulk request, to the feeds they come from. */
+   private void acknowledge(List<Object> payloads, boolean failed){
+      if (payloads == null){
+         return;
+      }
+      for (Object payload : payloads){
+         if (payload instanceof DriveBulkSink.Item){
+            DriveBulkSink.Item item = (DriveBulkSink.Item)payload;
+            if (failed){
+               item.getAcks().fail(item.getChange().getId());
+            } else {
+               item.getAcks().acknowledge(item.getChange().getId());
+            }
+         }
       }
    }
    
@@ -279,55 +633,318 @@ public class DriveRiver extends AbstractRiverComponent implements River{
       }
    }
    
-   /** */
-   private class DriveScanner implements Runnable{
+   /**
+    * A feed of the river, scanned on the shared scanning threads : each run performs one scan
+    * then schedules the next one according to the activity of the drive.
+    */
+   private class DriveFeed implements Runnable, DriveIndexingPipeline.Handler<DriveContent>{
    
-      private BulkRequestBuilder bulk;
-      private DriveRiverFeedDefinition feedDefinition;
+      private final DriveRiverFeedDefinition feedDefinition;
+      private final DriveConnector drive;
+      private final DriveAckTracker acks = new DriveAckTracker();
+      private final DriveScanScheduler scheduler;
+      /** The ids of the river documents recording progress of this feed. */
+      private final String lastChangesDocId;
+      private final String crawlStateDocId;
+      private volatile DriveIndexingPipeline<DriveContent> pipeline;
+      
+      /** The channel Drive pushes notifications on, and the one it replaces while being renewed. */
+      private volatile DriveChannel channel;
+      private volatile DriveChannel previousChannel;
+      private final String channelToken;
+      
+      /** Last recorded changes id, kept in memory once read from the river. */
+      private Long lastChangesId;
+      private boolean lastChangesIdLoaded = false;
+      
+      /** The next scheduled scan, and whether a wake up came while a scan was running. */
+      private ScheduledFuture<?> nextScan;
+      private boolean scanning = false;
+      private boolean rescanRequested = false;
+      
+      /** The number of skipped extractions last reported by this feed. */
+      private long reportedSkipped = 0;
+      
+      /** The largest change id seen on the drive, for computing how late feed is. */
+      private volatile long largestChangeId = -1;
+      
+      /** Changes read in scope, collapsed by coalescing, filtered out by title, updated without download. */
+      private final AtomicLong changesRead = new AtomicLong();
+      private final AtomicLong changesCoalesced = new AtomicLong();
+      private final AtomicLong changesFiltered = new AtomicLong();
+      private final AtomicLong changesUnchanged = new AtomicLong();
+      private final AtomicLong changesCached = new AtomicLong();
+      private final AtomicLong changesSubmitted = new AtomicLong();
+      
+      /** Notifications carrying the token of this feed, and the ones that woke it up. */
+      private final AtomicLong notificationsReceived = new AtomicLong();
+      private final AtomicLong notificationWakeUps = new AtomicLong();
+      
+      /** Whether a reindex has been asked for, and whether current crawl is a reindex. */
+      private volatile boolean reindexRequested = false;
+      private volatile boolean reindexing = false;
       
-      public DriveScanner(DriveRiverFeedDefinition feedDefinition){
+      public DriveFeed(DriveRiverFeedDefinition feedDefinition, String docSuffix) throws Exception{
          this.feedDefinition = feedDefinition;
+         this.lastChangesDocId = "_lastChangesId" + docSuffix;
+         this.crawlStateDocId = "_crawlstate" + docSuffix;
+         this.scheduler = new DriveScanScheduler(feedDefinition.getMinUpdateRate(), feedDefinition.getMaxUpdateRate());
+         
+         drive = new DriveConnector(feedDefinition.getClientId(), feedDefinition.getClientSecret(), feedDefinition.getRefreshToken());
+         drive.setSpillThreshold(feedDefinition.getSpillThreshold());
+         drive.setExtraFileFields(feedDefinition.getExtraFileFields());
+         drive.setMaxRequestsPerSecond(feedDefinition.getMaxRequestsPerSecond());
+         drive.setMaxRetries(feedDefinition.getMaxRetries());
+         drive.setRootUrl(feedDefinition.getApiRootUrl());
+         drive.setTokenServerUrl(feedDefinition.getTokenServerUrl());
+         DriveExportFormats exportFormats = DriveExportFormats.defaults();
+         for (Map.Entry<String, List<String>> entry : feedDefinition.getExportFormats().entrySet()){
+            exportFormats.setPreferences(entry.getKey(), entry.getValue());
+         }
+         drive.setExportFormats(exportFormats);
+         if (feedDefinition.getTempDir() != null){
+            drive.setTempDirectory(new java.io.File(feedDefinition.getTempDir()));
+         }
+         drive.connectUserDrive(feedDefinition.getFolder());
+         channelToken = feedDefinition.getPushToken() != null ? feedDefinition.getPushToken() : UUID.randomUUID().toString();
       }
       
       @Override
       public void run(){
-         while (true){
-            if (closed){
-               return;
+         synchronized (this){
+            scanning = true;
+            rescanRequested = false;
+         }
+         boolean foundChanges = false;
+         try{
+            foundChanges = scanOnce();
+         } finally {
+            // Poll more often while changes keep coming, less when drive is idle.
+            scheduler.onScanned(foundChanges);
+            synchronized (this){
+               scanning = false;
+               schedule(rescanRequested ? 0 : scheduler.getInterval());
             }
-            
-            try{
-               if (isStarted()){
-                  // Scan folder starting from last changes id, then record the new one.
-                  Long lastChangesId = getLastChangesIdFromRiver("_lastChangesId");
-                  lastChangesId = scan(feedDefinition.getFolder(), lastChangesId);
-                  updateRiver("_lastChangesId", lastChangesId);
+         }
+      }
+      
+      /** Schedule next scan of this feed on the shared scanning threads. */
+      private synchronized void schedule(long delay){
+         if (closed){
+            return;
+         }
+         if (logger.isDebugEnabled()){
+            logger.debug("Google drive feed {} is going to sleep for {} ms", feedDefinition.getFolder(), delay);
+         }
+         try{
+            nextScan = scanners.schedule(this, delay, TimeUnit.MILLISECONDS);
+         } catch (RejectedExecutionException ree){
+            // River is being closed.
+         }
+      }
+      
+      /** Scan at once if feed is waiting for its next scan, or right after the running one. */
+      private synchronized void wakeUp(){
+         if (scanning){
+            rescanRequested = true;
+         } else if (nextScan != null && nextScan.cancel(false)){
+            schedule(0);
+         }
+      }
+      
+      /** Ask for a reindex, starting at once or right after the running scan. */
+      private void reindex(){
+         reindexRequested = true;
+         wakeUp();
+      }
+      
+      /** Forget progress and crawl state so that feed crawls again, even if restarted meanwhile. */
+      private void startReindex(){
+         logger.info("Starting reindex of feed {}", feedDefinition.getFolder());
+         reindexRequested = false;
+         client.prepareDelete("_river", riverName.name(), lastChangesDocId).execute().actionGet();
+         client.prepareDelete("_river", riverName.name(), crawlStateDocId).execute().actionGet();
+         lastChangesId = null;
+         reindexing = true;
+      }
+      
+      /** @return false if notification does not carry the token of this feed */
+      private boolean onNotification(String channelId, String token, String state){
+         if (!channelToken.equals(token)){
+            return false;
+         }
+         if (logger.isDebugEnabled()){
+            logger.debug("Received {} notification on channel {}", state, channelId);
+         }
+         notificationsReceived.incrementAndGet();
+         // Feeds may share a configured token, only wake up the one owning channel.
+         if (!"sync".equals(state) && (isChannel(channel, channelId) || isChannel(previousChannel, channelId))){
+            notificationWakeUps.incrementAndGet();
+            wakeUp();
+         }
+         return true;
+      }
+      
+      private boolean isChannel(DriveChannel candidate, String channelId){
+         return candidate != null && candidate.getId().equals(channelId);
+      }
+      
+      /** Check the notification channel on the renewal thread, often enough to renew it before it expires. */
+      private void scheduleChannelRenewal(){
+         long period = Math.max(1, feedDefinition.getPushChannelTtl() / CHANNEL_CHECKS_PER_TTL);
+         channelRenewer.scheduleWithFixedDelay(new Runnable(){
+            @Override
+            public void run(){
+               // A failed check must not cancel the next ones.
+               try{
+                  if (isRunning()){
+                     maintainChannel();
+                  }
+               } catch (Exception e){
+                  logger.warn("Failed to renew notification channel of {}: {}", feedDefinition.getFolder(), e.getMessage());
+               }
+            }
+         }, 0, period, TimeUnit.MILLISECONDS);
+      }
+      
+      /**
+       * Open a notification channel if push is enabled, renewing it once a quarter of its time
+       * to live is left. The replaced channel is stopped once the new one is open.
+       */
+      private void maintainChannel(){
+         if (feedDefinition.getPushAddress() == null){
+            return;
+         }
+         DriveChannel current = channel;
+         if (current != null && current.getExpiration() - System.currentTimeMillis() > feedDefinition.getPushChannelTtl() / 4){
+            return;
+         }
+         try{
+            DriveChannel renewed = drive.watchChanges(UUID.randomUUID().toString(), feedDefinition.getPushAddress(),
+                  channelToken, feedDefinition.getPushChannelTtl());
+            previousChannel = current;
+            channel = renewed;
+            if (logger.isDebugEnabled()){
+               logger.debug("Opened notification channel {} expiring at {}", renewed.getId(), renewed.getExpiration());
+            }
+         } catch (IOException ioe){
+            logger.warn("Failed to open a notification channel, relying on polling only: {}", ioe.getMessage());
+            return;
+         }
+         stopChannel(current);
+         previousChannel = null;
+         // River may have been closed while channel was being opened.
+         if (closed){
+            stopChannel(channel);
+         }
+      }
+      
+      /** Stop the notification channels of this feed. */
+      private void stopChannels(){
+         stopChannel(channel);
+         stopChannel(previousChannel);
+      }
+      
+      /** Stop a notification channel, failures only meaning Drive will keep notifying until expiration. */
+      private void stopChannel(DriveChannel toStop){
+         if (toStop == null){
+            return;
+         }
+         try{
+            drive.stopChannel(toStop);
+         } catch (IOException ioe){
+            logger.debug("Failed to stop notification channel {}: {}", toStop.getId(), ioe.getMessage());
+         }
+      }
+      
+      /** Write the counters of this feed. */
+      private void statsToXContent(XContentBuilder builder) throws IOException{
+         Long recorded = lastChangesId;
+         DriveChannel current = channel;
+         builder.startObject()
+            .field("name", feedDefinition.getFeedname())
+            .field("folder", feedDefinition.getFolder())
+            .field("last_changes_id", recorded)
+            .field("largest_change_id", largestChangeId)
+            .field("change_id_lag", recorded != null && largestChangeId >= 0 ? Math.max(0, largestChangeId - recorded) : null)
+            .field("crawling", recorded == null)
+            .field("reindexing", reindexing)
+            .field("poll_interval_millis", scheduler.getInterval())
+            .startObject("changes")
+               .field("read", changesRead.get())
+               .field("coalesced", changesCoalesced.get())
+               .field("filtered", changesFiltered.get())
+               .field("unchanged", changesUnchanged.get())
+               .field("cached", changesCached.get())
+               .field("submitted", changesSubmitted.get())
+            .endObject()
+            .startObject("notifications")
+               .field("channel_id", current != null ? current.getId() : null)
+               .field("received", notificationsReceived.get())
+               .field("wake_ups", notificationWakeUps.get())
+            .endObject();
+         drive.getStats().toXContent(builder, "drive");
+         builder.endObject();
+      }
+      
+      /** Report extraction outcomes when some documents have been indexed with metadata only. */
+      private void reportExtractions(){
+         long skipped = extractor.getSkippedCount();
+         if (skipped > reportedSkipped){
+            logger.info("Content extraction: {}", extractor.getStats());
+            reportedSkipped = skipped;
+         } else if (logger.isDebugEnabled()){
+            logger.debug("Content extraction: {}", extractor.getStats());
+         }
+      }
+      
+      /** Scan feed once, crawling it first if it has never been scanned. */
+      private boolean scanOnce(){
+         if (closed){
+            return false;
+         }
+         boolean foundChanges = false;
+         try{
+            if (isStarted()){
+               // Scan folder starting from last changes id, then record the new one.
+               if (!lastChangesIdLoaded){
+                  lastChangesId = getLastChangesIdFromRiver();
+                  lastChangesIdLoaded = true;
+               }
+               if (reindexRequested){
+                  startReindex();
+               }
+               Long previousChangesId = lastChangesId;
+               if (lastChangesId == null){
+                  // First start : crawl current state rather than replaying the whole changes history.
+                  lastChangesId = crawl(feedDefinition.getFolder());
                } else {
-                  logger.info("Google Drive River is disabled for {}", riverName().name());
+                  lastChangesId = scan(feedDefinition.getFolder(), lastChangesId);
                }
-            } catch (Exception e){
-               logger.warn("Error while indexing content from {}", feedDefinition.getFolder());
-               if (logger.isDebugEnabled()){
-                  logger.debug("Exception for folder {} is {}", feedDefinition.getFolder(), e);
-                  e.printStackTrace();
+               foundChanges = lastChangesId != null && !lastChangesId.equals(previousChangesId);
+               if (lastChangesId != null){
+                  updateRiver(lastChangesId);
                }
+               reportExtractions();
+            } else {
+               logger.info("Google Drive River is disabled for {}", riverName().name());
             }
-            
-            try {
-               if (logger.isDebugEnabled()){
-                  logger.debug("Google drive river is going to sleep for {} ms", feedDefinition.getUpdateRate());
-               }
-               Thread.sleep(feedDefinition.getUpdateRate());
-            } catch (InterruptedException ie){
+         } catch (Exception e){
+            logger.warn("Error while indexing content from {}", feedDefinition.getFolder());
+            if (logger.isDebugEnabled()){
+               logger.debug("Exception for folder {} is {}", feedDefinition.getFolder(), e);
+               e.printStackTrace();
             }
          }
+         return foundChanges;
       }
 
       private boolean isStarted(){
-         // Refresh index before querying it.
-         client.admin().indices().prepareRefresh("_river").execute().actionGet();
-         GetResponse isStartedGetResponse = client.prepareGet("_river", riverName().name(), "_drivestatus").execute().actionGet();
+         // Status may have been changed from another node : read it again, but using a realtime
+         // get rather than refreshing the _river index shared by all rivers.
          try{
+            GetResponse isStartedGetResponse = client.prepareGet("_river", riverName().name(), "_drivestatus")
+                  .setRealtime(true).execute().actionGet();
             if (!isStartedGetResponse.isExists()){
                XContentBuilder xb = jsonBuilder().startObject()
                      .startObject("google-drive")
@@ -335,32 +952,27 @@ public class DriveRiver extends AbstractRiverComponent implements River{
                         .field("status", "STARTED").endObject()
                      .endObject();
                client.prepareIndex("_river", riverName.name(), "_drivestatus").setSource(xb).execute();
-               return true;
+               status = "STARTED";
             } else {
-               String status = (String)XContentMapValues.extractValue("google-drive.status", isStartedGetResponse.getSourceAsMap());
-               if ("STOPPED".equals(status)){
-                  return false;
-               }
+               status = (String)XContentMapValues.extractValue("google-drive.status", isStartedGetResponse.getSourceAsMap());
             }
          } catch (Exception e){
-            logger.warn("failed to get status for " + riverName().name() + ", throttling....", e);
+            logger.warn("failed to get status for " + riverName().name() + ", using last known one", e);
          }
-         return true;
+         return !STATUS_STOPPED.equals(status);
       }
       
       @SuppressWarnings("unchecked")
-      private Long getLastChangesIdFromRiver(String lastChangesField){
+      private Long getLastChangesIdFromRiver(){
          Long result = null;
          try {
-            // Do something.
-            client.admin().indices().prepareRefresh("_river").execute().actionGet();
             GetResponse lastSeqGetResponse = client.prepareGet("_river", riverName().name(),
-                  lastChangesField).execute().actionGet();
+                  lastChangesDocId).setRealtime(true).execute().actionGet();
             if (lastSeqGetResponse.isExists()) {
                Map<String, Object> fsState = (Map<String, Object>) lastSeqGetResponse.getSourceAsMap().get("google-drive");
 
                if (fsState != null){
-                  Object lastChanges = fsState.get(lastChangesField);
+                  Object lastChanges = fsState.get("_lastChangesId");
                   if (lastChanges != null){
                      try{
                         result = Long.parseLong(lastChanges.toString());
@@ -372,11 +984,11 @@ public class DriveRiver extends AbstractRiverComponent implements River{
             } else {
                // This is first call, just log in debug mode.
                if (logger.isDebugEnabled()){
-                  logger.debug("{} doesn't exist", lastChangesField);
+                  logger.debug("{} doesn't exist", lastChangesDocId);
                }
             }
          } catch (Exception e) {
-            logger.warn("failed to get _lastChangesId, throttling....", e);
+            logger.warn("failed to get " + lastChangesDocId + ", throttling....", e);
          }
 
          if (logger.isDebugEnabled()){
@@ -390,72 +1002,413 @@ public class DriveRiver extends AbstractRiverComponent implements River{
          if (logger.isDebugEnabled()){
             logger.debug("Starting scanning of folder {} since {}", folder, lastChangesId);
          }
-         DriveChanges changes = drive.getChanges(lastChangesId);
-         
-         // Browse change and checks if its indexable before starting.
-         for (Change change : changes.getChanges()){
-            if (change.getFile() != null && DriveRiverUtil.isIndexable(change.getFile().getTitle(), 
-                  feedDefinition.getIncludes(), feedDefinition.getExcludes())){
-               if (change.getDeleted()){
-                  esDelete(indexName, typeName, change.getFileId());
-               } else {
-                  indexFile(change.getFile());
+         int collapsed = 0;
+         long checkpointed = lastChangesId;
+         acks.reset(lastChangesId);
+         DriveChangesStream stream = drive.streamChanges(lastChangesId);
+         try{
+            // Process changes page by page while next one is being fetched.
+            while (stream.hasNext() && isRunning()){
+               DriveChanges changes = stream.next();
+               
+               // Only keep the latest change of each file before any download happens.
+               List<Change> latestChanges = DriveRiverUtil.coalesceChanges(changes.getChanges());
+               collapsed += changes.getChanges().size() - latestChanges.size();
+               changesRead.addAndGet(changes.getChanges().size());
+               changesCoalesced.addAndGet(changes.getChanges().size() - latestChanges.size());
+               largestChangeId = Math.max(largestChangeId, stream.getLargestChangeId());
+               
+               submitChanges(latestChanges);
+               acks.advance(stream.getLastReadChangeId());
+               
+               // Record progress as soon as changes are acknowledged, not only at the end of scan.
+               long watermark = acks.getWatermark();
+               if (watermark > checkpointed){
+                  updateRiver(watermark);
+                  checkpointed = watermark;
                }
             }
+         } finally {
+            stream.close();
+         }
+         if (collapsed > 0){
+            logger.info("Collapsed {} duplicate changes of files changed many times", collapsed);
+         }
+         // Wait for every change to be acknowledged before recording the new changes id.
+         awaitAcknowledged();
+         if (acks.hasFailures()){
+            logger.warn("Some changes failed to be indexed, they will be scanned again from {}", acks.getWatermark());
          }
-         return changes.getLastChangeId();
+         return acks.getWatermark();
       }
       
-      /** Index a Google Drive file by retrieving its content and building the suitable Json content. */
-      private void indexFile(File driveFile){
-         if (logger.isDebugEnabled()){
-            logger.debug("Trying to index '{}'", driveFile.getTitle());
+      /** Wait for every submitted change to reach the bulk and to be acknowledged. */
+      private void awaitAcknowledged() throws InterruptedException{
+         pipeline.awaitCompletion();
+         bulkSink.flush();
+         acks.awaitAcknowledged();
+      }
+      
+      /** Check changes are indexable before handing them to the pipeline. */
+      private void submitChanges(List<Change> changes) throws Exception{
+         List<Change> indexables = new ArrayList<Change>();
+         for (Change change : changes){
+            // Deletions have no file, hence no title to filter on.
+            if (Boolean.TRUE.equals(change.getDeleted()) || (change.getFile() != null 
+                  && feedDefinition.getTitleFilter().isIndexable(change.getFile().getTitle()))){
+               indexables.add(change);
+            }
+         }
+         changesFiltered.addAndGet(changes.size() - indexables.size());
+         // Files whose content did not change only need their metadata to be updated, unless
+         // reindexing where whole documents are rebuilt.
+         Map<String, String> fingerprints = reindexing ? new HashMap<String, String>() : getIndexedFingerprints(indexables);
+         for (Change change : indexables){
+            DriveContentExtractor.Extraction cached = null;
+            if (!Boolean.TRUE.equals(change.getDeleted()) && fingerprints.containsKey(change.getFileId())
+                  && fingerprints.get(change.getFileId()).equals(drive.getFingerprint(change.getFile()))){
+               if (logger.isDebugEnabled()){
+                  logger.debug("Content of '{}' is unchanged, updating metadata only", change.getFile().getTitle());
+               }
+               changesUnchanged.incrementAndGet();
+               pipeline.submitDirect(change, esUpdate(indexName, typeName, change.getFileId(), 
+                     DriveRiverUtil.buildDriveMetadataDocument(change.getFile())));
+            } else if (!Boolean.TRUE.equals(change.getDeleted()) && (cached = getCachedText(change.getFile())) != null){
+               if (logger.isDebugEnabled()){
+                  logger.debug("Content of '{}' is cached, indexing it without download", change.getFile().getTitle());
+               }
+               changesCached.incrementAndGet();
+               File driveFile = change.getFile();
+               pipeline.submitDirect(change, esIndex(indexName, typeName, driveFile.getId(),
+                     DriveRiverUtil.buildDriveDocument(driveFile, drive.getMimeType(driveFile), cached.getText(),
+                           drive.getFingerprint(driveFile), cached.getStatus())));
+            } else {
+               changesSubmitted.incrementAndGet();
+               pipeline.submit(change);
+            }
+         }
+      }
+      
+      /** @return The text cached for content of file, cut at maximum length in force, null if none */
+      private DriveContentExtractor.Extraction getCachedText(File driveFile){
+         if (textCache == null || feedDefinition.isJsonSupport()){
+            return null;
+         }
+         String fingerprint = drive.getFingerprint(driveFile);
+         DriveContentExtractor.Extraction cached = fingerprint != null ? textCache.get(fingerprint) : null;
+         if (cached != null && cached.getText().length() >= feedDefinition.getMaxExtractedChars()){
+            // Maximum length has been lowered since text was cached, cut it as extraction would.
+            return new DriveContentExtractor.Extraction(cached.getText().substring(0, feedDefinition.getMaxExtractedChars()),
+                  DriveContentExtractor.STATUS_TRUNCATED);
+         }
+         return cached;
+      }
+      
+      /**
+       * Crawl the current content of scanned folders, listing many folders in parallel. The
+       * position of changes feed is recorded before crawl starts so that changes happening
+       * meanwhile are caught up by the next scan. Crawl progress is checkpointed into the river
+       * after each wave of folder pages so that a restarted river resumes where it stopped.
+       * @return The changes id to scan from once crawl is done, null if river was closed meanwhile
+       */
+      private Long crawl(String folder) throws Exception{
+         Map<String, String> pendingFolders = new LinkedHashMap<String, String>();
+         Long startChangeId = loadCrawlState(pendingFolders);
+         if (startChangeId == null){
+            startChangeId = drive.getLargestChangeId();
+            largestChangeId = Math.max(largestChangeId, startChangeId);
+            if (drive.getFolderTree() != null){
+               for (String folderId : drive.getFolderTree().getFoldersInScope()){
+                  pendingFolders.put(folderId, "");
+               }
+            } else {
+               pendingFolders.put(ALL_FILES, "");
+            }
+            saveCrawlState(startChangeId, pendingFolders);
+            logger.info("Starting crawl of {} folders, changes since {} will be scanned afterwards", 
+                  pendingFolders.size(), startChangeId);
+         } else {
+            logger.info("Resuming crawl with {} folders left", pendingFolders.size());
          }
+         acks.reset(startChangeId);
+         // Files having many parents are listed once per crawled parent, but must be indexed once.
+         ConcurrentHashMap<String, Boolean> multiParentFiles = new ConcurrentHashMap<String, Boolean>();
          
+         // Waves are sized on crawl workers shared by all feeds, so that feeds crawl in turn.
+         int waveSize = riverDefinition.getCrawlWorkers() * CRAWL_WAVE_FACTOR;
+         List<Future<String>> submitted = new ArrayList<Future<String>>();
          try{
-            if (feedDefinition.isJsonSupport()){
-               esIndex(indexName, typeName, driveFile.getId(), drive.getContent(driveFile));
-            } else {
-               byte[] fileContent = drive.getContent(driveFile);
-               if (fileContent != null) {
-                  // Parse content using Tika directly.
-                  String parsedContent = TikaHolder.tika().parseToString(
-                        new BytesStreamInput(fileContent, false), new Metadata());
-
-                  esIndex(indexName, typeName, driveFile.getId(),
-                        jsonBuilder()
-                              .startObject()
-                              .field(DriveRiverUtil.DOC_FIELD_TITLE, driveFile.getTitle())
-                              .field(DriveRiverUtil.DOC_FIELD_CREATED_DATE, driveFile.getCreatedDate().getValue())
-                              .field(DriveRiverUtil.DOC_FIELD_MODIFIED_DATE, driveFile.getModifiedDate().getValue())
-                              .field(DriveRiverUtil.DOC_FIELD_SOURCE_URL, driveFile.getAlternateLink())
-                              .field(DriveRiverUtil.DOC_FIELD_DESCRIPTION, driveFile.getDescription())
-                              /*.field(DriveRiverUtil.DOC_FIELD_MODIFYING_USER, driveFile.getLastModifyingUser())*/
-                              .startObject("file")
-                              .field("_content_type", drive.getMimeType(driveFile))
-                              .field("_name", driveFile.getTitle())
-                              .field("title", driveFile.getTitle())
-                              .field("file", parsedContent)
-                              .endObject()
-                              .endObject()
-                  );
-
-                  if (logger.isDebugEnabled()) {
-                     logger.debug("Index " + driveFile.getTitle() + " : success");
+            while (!pendingFolders.isEmpty()){
+               if (!isRunning()){
+                  return null;
+               }
+               // List next page of a wave of folders, in parallel.
+               Map<String, Future<String>> wave = new LinkedHashMap<String, Future<String>>();
+               for (Map.Entry<String, String> entry : pendingFolders.entrySet()){
+                  if (wave.size() >= waveSize){
+                     break;
                   }
-               } else {
-                  logger.debug("File content was returned as null");
+                  Future<String> page = workers.getCrawlers().submit(crawlPage(entry.getKey(), entry.getValue(), startChangeId, multiParentFiles));
+                  wave.put(entry.getKey(), page);
+                  submitted.add(page);
+               }
+               Exception failure = null;
+               for (Map.Entry<String, Future<String>> entry : wave.entrySet()){
+                  try{
+                     String nextPageToken = awaitCrawlPage(entry.getKey(), entry.getValue());
+                     if (nextPageToken != null && nextPageToken.length() > 0){
+                        pendingFolders.put(entry.getKey(), nextPageToken);
+                     } else {
+                        pendingFolders.remove(entry.getKey());
+                     }
+                  } catch (Exception e){
+                     // Keep the folder pending, crawl will resume from its current page.
+                     failure = e;
+                  }
+               }
+               // Wait for listed files to be indexed before checkpointing progress.
+               awaitAcknowledged();
+               if (acks.hasFailures()){
+                  throw new IOException("Some crawled files failed to be indexed, crawl will resume from last checkpoint");
+               }
+               saveCrawlState(startChangeId, pendingFolders);
+               if (failure != null){
+                  throw failure;
                }
             }
-         } catch (Exception e) {
-            logger.warn("Can not index " + driveFile.getTitle() + " : " + e.getMessage());
+         } finally {
+            // Pages left behind by a failure must not keep the shared crawl workers busy.
+            for (Future<String> page : submitted){
+               page.cancel(true);
+            }
+         }
+         logger.info("Crawl is done");
+         client.prepareDelete("_river", riverName.name(), crawlStateDocId).execute().actionGet();
+         reindexing = false;
+         return startChangeId;
+      }
+      
+      /**
+       * Build the task listing a page of folder and handing its files to the pipeline.
+       * @param multiParentFiles Ids of files having many parents already handed during this crawl
+       */
+      private Callable<String> crawlPage(final String folderId, final String pageToken, final long startChangeId,
+            final ConcurrentHashMap<String, Boolean> multiParentFiles){
+         return new Callable<String>(){
+            @Override
+            public String call() throws Exception{
+               FileList page = drive.listFiles(ALL_FILES.equals(folderId) ? null : folderId, pageToken);
+               // Crawled files are indexed as if they changed at crawl start.
+               List<Change> changes = new ArrayList<Change>();
+               for (File file : page.getItems()){
+                  if (DriveConnector.APPLICATION_VND_GOOGLE_APPS_FOLDER.equals(file.getMimeType())){
+                     continue;
+                  }
+                  // Copies of a change share its id and could not supersede each other in the pipeline.
+                  if (file.getParents() == null || file.getParents().size() < 2 
+                        || multiParentFiles.putIfAbsent(file.getId(), Boolean.TRUE) == null){
+                     changes.add(new Change().setId(startChangeId).setFileId(file.getId()).setFile(file).setDeleted(false));
+                  }
+               }
+               submitChanges(changes);
+               return page.getNextPageToken();
+            }
+         };
+      }
+      
+      /** Wait for a folder page to be crawled, folders that do not exist anymore have no next page. */
+      private String awaitCrawlPage(String folderId, Future<String> future) throws Exception{
+         try{
+            return future.get();
+         } catch (ExecutionException ee){
+            Throwable cause = ee.getCause();
+            if (cause instanceof HttpResponseException && ((HttpResponseException)cause).getStatusCode() == 404){
+               logger.debug("Folder {} does not exist anymore, skipping it", folderId);
+               return null;
+            }
+            logger.warn("Error while crawling folder {}: {}", folderId, cause.getMessage());
+            throw cause instanceof Exception ? (Exception)cause : ee;
+         }
+      }
+      
+      /**
+       * Load the progress of an interrupted crawl.
+       * @param pendingFolders Filled with the page to crawl next for each pending folder
+       * @return The changes id recorded at crawl start, null if no crawl was in progress
+       */
+      @SuppressWarnings("unchecked")
+      private Long loadCrawlState(Map<String, String> pendingFolders){
+         try{
+            GetResponse crawlStateResponse = client.prepareGet("_river", riverName().name(), crawlStateDocId)
+                  .setRealtime(true).execute().actionGet();
+            if (crawlStateResponse.isExists()){
+               Map<String, Object> crawlState = (Map<String, Object>)crawlStateResponse.getSourceAsMap().get("google-drive");
+               if (crawlState != null && crawlState.get("startChangeId") != null){
+                  Object folders = crawlState.get("pendingFolders");
+                  if (folders instanceof List){
+                     for (Map<String, Object> pending : (List<Map<String, Object>>)folders){
+                        pendingFolders.put(XContentMapValues.nodeStringValue(pending.get("id"), null),
+                              XContentMapValues.nodeStringValue(pending.get("pageToken"), ""));
+                     }
+                  }
+                  reindexing = XContentMapValues.nodeBooleanValue(crawlState.get("reindex"), false);
+                  return XContentMapValues.nodeLongValue(crawlState.get("startChangeId"));
+               }
+            }
+         } catch (Exception e){
+            logger.warn("failed to get " + crawlStateDocId + ", starting a new crawl", e);
+         }
+         pendingFolders.clear();
+         return null;
+      }
+      
+      /** Checkpoint crawl progress into the river. */
+      private void saveCrawlState(long startChangeId, Map<String, String> pendingFolders) throws Exception{
+         // Folders are stored as an array to avoid one mapping field per folder id.
+         XContentBuilder xb = jsonBuilder()
+            .startObject()
+               .startObject("google-drive")
+                  .field("feedname", feedDefinition.getFeedname())
+                  .field("startChangeId", startChangeId)
+                  .field("reindex", reindexing)
+                  .startArray("pendingFolders");
+         for (Map.Entry<String, String> entry : pendingFolders.entrySet()){
+            xb.startObject().field("id", entry.getKey()).field("pageToken", entry.getValue()).endObject();
+         }
+         xb.endArray().endObject().endObject();
+         client.prepareIndex("_river", riverName.name(), crawlStateDocId).setSource(xb).execute().actionGet();
+      }
+      
+      /** Retrieve the content fingerprints recorded into already indexed documents. */
+      private Map<String, String> getIndexedFingerprints(List<Change> changes){
+         Map<String, String> fingerprints = new HashMap<String, String>();
+         if (feedDefinition.isJsonSupport() || changes.isEmpty()){
+            return fingerprints;
+         }
+         MultiGetRequestBuilder request = client.prepareMultiGet();
+         for (Change change : changes){
+            if (!Boolean.TRUE.equals(change.getDeleted())){
+               request.add(new MultiGetRequest.Item(indexName, typeName, change.getFileId())
+                     .fields(DriveRiverUtil.DOC_FIELD_FINGERPRINT));
+            }
+         }
+         try{
+            for (MultiGetItemResponse item : request.execute().actionGet()){
+               if (!item.isFailed() && item.getResponse().isExists()){
+                  GetField field = item.getResponse().getField(DriveRiverUtil.DOC_FIELD_FINGERPRINT);
+                  if (field != null && field.getValue() != null){
+                     fingerprints.put(item.getId(), field.getValue().toString());
+                  }
+               }
+            }
+         } catch (Exception e){
+            // Not being able to skip downloads is not a reason for stopping.
+            logger.warn("Failed to get indexed fingerprints, downloading all files", e);
          }
+         return fingerprints;
       }
       
-      /** Update river last changes id value.*/
-      private void updateRiver(String lastChangesField, Long lastChangesId) throws Exception{
+      @Override
+      public DriveContent download(Change change) throws Exception{
+         if (logger.isDebugEnabled()){
+            logger.debug("Trying to index '{}'", change.getFile().getTitle());
+         }
+         // Wait for memory before downloading, contents beyond spill threshold are held on disk.
+         long estimate = feedDefinition.getSpillThreshold();
+         if (change.getFile().getFileSize() != null){
+            estimate = Math.min(estimate, change.getFile().getFileSize());
+         }
+         long reserved = memory.acquire(estimate);
+         DriveContent fileContent = null;
+         try{
+            fileContent = drive.downloadContent(change.getFile());
+         } catch (HttpResponseException hre){
+            // A file removed since the change was listed has nothing to index, its deletion comes next.
+            if (hre.getStatusCode() != 404){
+               throw hre;
+            }
+            logger.debug("File {} does not exist anymore, skipping it", change.getFileId());
+         } finally {
+            memory.resize(reserved, memorySize(fileContent));
+         }
+         if (fileContent == null){
+            logger.debug("File content was returned as null");
+         }
+         return fileContent;
+      }
+      
+      @Override
+      public ActionRequest<?> extract(Change change, DriveContent fileContent) throws Exception{
+         File driveFile = change.getFile();
+         if (feedDefinition.isJsonSupport()){
+            return esIndex(indexName, typeName, driveFile.getId(), fileContent.toByteArray());
+         }
+         // Text files and text exports are decoded as is, others have to be parsed with Tika.
+         String contentType = drive.getMimeType(driveFile);
+         DriveContentExtractor.Extraction extraction = null;
+         long start = System.currentTimeMillis();
+         if (drive.isTextContent(driveFile)){
+            // Drive exports text as UTF-8, uploaded text files may use any charset.
+            extraction = drive.isExported(driveFile) ? extractor.decode(fileContent, DriveContentExtractor.UTF_8)
+                  : extractor.decode(fileContent, contentType);
+         } else {
+            extraction = extractor.parse(fileContent, contentType, driveFile.getTitle());
+         }
+         extractor.recordTime(contentType, System.currentTimeMillis() - start);
+         String fingerprint = drive.getFingerprint(driveFile);
+         if (extraction.isSkipped()){
+            logger.warn("Indexing metadata only for '{}', content extraction ended with {}", 
+                  driveFile.getTitle(), extraction.getStatus());
+            // Do not record fingerprint when a later try may succeed, so that next change downloads file again.
+            if (!DriveContentExtractor.STATUS_TOO_LARGE.equals(extraction.getStatus())){
+               fingerprint = null;
+            }
+         }
+         if (textCache != null && fingerprint != null){
+            textCache.put(fingerprint, extraction);
+         }
+
+         // Extracted text is already in memory, account for it while document is built.
+         long textSize = extraction.getText() != null ? 2L * extraction.getText().length() : 0;
+         memory.forceAcquire(textSize);
+         ActionRequest<?> request = null;
+         try{
+            request = esIndex(indexName, typeName, driveFile.getId(),
+                  DriveRiverUtil.buildDriveDocument(driveFile, contentType, extraction.getText(),
+                        fingerprint, extraction.getStatus()));
+         } finally {
+            memory.release(textSize);
+         }
+
+         if (logger.isDebugEnabled()) {
+            logger.debug("Index " + driveFile.getTitle() + " : success");
+         }
+         return request;
+      }
+      
+      @Override
+      public ActionRequest<?> delete(Change change) throws Exception{
+         return esDelete(indexName, typeName, change.getFileId());
+      }
+      
+      @Override
+      public void release(DriveContent fileContent){
+         fileContent.close();
+         memory.release(memorySize(fileContent));
+      }
+      
+      /** @return The number of bytes a downloaded content holds in memory */
+      private long memorySize(DriveContent fileContent){
+         return fileContent == null || fileContent.isSpilled() ? 0 : fileContent.getLength();
+      }
+      
+      /**
+       * Update river last changes id value. This is written directly rather than through the
+       * bulk, as it must only be recorded once previous changes are acknowledged.
+       */
+      private void updateRiver(Long lastChangesId) throws Exception{
          if (logger.isDebugEnabled()){
-            logger.debug("Updating lastChangesField: {}", lastChangesId);
+            logger.debug("Updating {}: {}", lastChangesDocId, lastChangesId);
          }
 
          // We store the lastupdate date and some stats
@@ -463,40 +1416,49 @@ public class DriveRiver extends AbstractRiverComponent implements River{
             .startObject()
                .startObject("google-drive")
                   .field("feedname", feedDefinition.getFeedname())
-                  .field(lastChangesField, lastChangesId)
+                  .field("_lastChangesId", lastChangesId)
                .endObject()
             .endObject();
-         esIndex("_river", riverName.name(), lastChangesField, xb);
+         client.prepareIndex("_river", riverName.name(), lastChangesDocId).setSource(xb).execute().actionGet();
+         this.lastChangesId = lastChangesId;
       }
 
-      /** Add to bulk an IndexRequest. */
-      private void esIndex(String index, String type, String id, XContentBuilder xb) throws Exception{
+      /** Build an IndexRequest for bulk. */
+      private ActionRequest<?> esIndex(String index, String type, String id, XContentBuilder xb) throws Exception{
          if (logger.isDebugEnabled()){
             logger.debug("Indexing in ES " + index + ", " + type + ", " + id);
          }
          if (logger.isTraceEnabled()){
             logger.trace("Json indexed : {}", xb.string());
          }
-         bulkProcessor.add(client.prepareIndex(index, type, id).setSource(xb).request());
+         return client.prepareIndex(index, type, id).setSource(xb).request();
       }
 
-      /** Add to bulk an IndexRequest. */
-      private void esIndex(String index, String type, String id, byte[] json) throws Exception{
+      /** Build an IndexRequest for bulk. */
+      private ActionRequest<?> esIndex(String index, String type, String id, byte[] json) throws Exception{
          if (logger.isDebugEnabled()){
             logger.debug("Indexing in ES " + index + ", " + type + ", " + id);
          }
          if (logger.isTraceEnabled()){
             logger.trace("Json indexed : {}", json);
          }
-         bulkProcessor.add(client.prepareIndex(index, type, id).setSource(json).request());
+         return client.prepareIndex(index, type, id).setSource(json).request();
+      }
+
+      /** Build a partial UpdateRequest for bulk. */
+      private ActionRequest<?> esUpdate(String index, String type, String id, XContentBuilder xb) throws Exception{
+         if (logger.isDebugEnabled()){
+            logger.debug("Updating in ES " + index + ", " + type + ", " + id);
+         }
+         return client.prepareUpdate(index, type, id).setDoc(xb).request();
       }
 
-      /** Add to bulk a DeleteRequest. */
-      private void esDelete(String index, String type, String id) throws Exception{
+      /** Build a DeleteRequest for bulk. */
+      private ActionRequest<?> esDelete(String index, String type, String id) throws Exception{
          if (logger.isDebugEnabled()){
             logger.debug("Deleting from ES " + index + ", " + type + ", " + id);
          }
-         bulkProcessor.add(client.prepareDelete(index, type, id).request());
+         return client.prepareDelete(index, type, id).request();
       }
    }
 }
@@ -0,0 +1,220 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.river;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.indices.IndexMissingException;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.BaseTransportRequestHandler;
+import org.elasticsearch.transport.FutureTransportResponseHandler;
+import org.elasticsearch.transport.TransportChannel;
+import org.elasticsearch.transport.TransportRequest;
+import org.elasticsearch.transport.TransportResponse;
+import org.elasticsearch.transport.TransportService;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+/**
+ * A node level entry point running management commands on Google Drive rivers, whichever
+ * node receives them. A command targeting a river that runs on another node is forwarded to
+ * this node, found from the status Elasticsearch records into the _river index for each river.
+ * @author laurent
+ */
+public class DriveRiverCommands{
+
+   private static final ESLogger logger = Loggers.getLogger(DriveRiverCommands.class);
+
+   /** The name of transport action commands are forwarded with. */
+   public static final String ACTION_NAME = "drive/river/command";
+
+   /** The command starting a scan at once. */
+   public static final String SCAN = "scan";
+   /** The command rebuilding all the documents of river. */
+   public static final String REINDEX = "reindex";
+   /** The command writing the counters of river as a JSON object. */
+   public static final String STATS = "stats";
+
+   private static final TimeValue TIMEOUT = TimeValue.timeValueSeconds(30);
+
+   private final Client client;
+   private final ClusterService clusterService;
+   private final TransportService transportService;
+   private final DriveRiverRegistry registry;
+
+   @Inject
+   public DriveRiverCommands(Client client, ClusterService clusterService, TransportService transportService, 
+         DriveRiverRegistry registry){
+      this.client = client;
+      this.clusterService = clusterService;
+      this.transportService = transportService;
+      this.registry = registry;
+      transportService.registerHandler(ACTION_NAME, new CommandHandler());
+   }
+
+   /**
+    * Run a command on a river, on this node if river runs here or on the node running it.
+    * @param riverName The name of river
+    * @param command The command to run
+    * @return The output of command, empty if it has none, or null if river is not running
+    */
+   public String execute(String riverName, String command) throws IOException{
+      DriveRiver river = registry.get(riverName);
+      if (river != null){
+         return executeLocally(river, command);
+      }
+      DiscoveryNode node = findRiverNode(riverName);
+      if (node == null || node.equals(clusterService.localNode())){
+         return null;
+      }
+      if (logger.isDebugEnabled()){
+         logger.debug("Forwarding command {} for river {} to node {}", command, riverName, node);
+      }
+      CommandResponse response = transportService.submitRequest(node, ACTION_NAME, new CommandRequest(riverName, command),
+            new FutureTransportResponseHandler<CommandResponse>(){
+               @Override
+               public CommandResponse newInstance(){
+                  return new CommandResponse();
+               }
+            }).txGet(TIMEOUT.millis(), TimeUnit.MILLISECONDS);
+      return response.output;
+   }
+
+   /** Run a command on a river running on this node. */
+   private static String executeLocally(DriveRiver river, String command) throws IOException{
+      if (SCAN.equals(command)){
+         river.wakeUp();
+         return "";
+      }
+      if (REINDEX.equals(command)){
+         river.reindex();
+         return "";
+      }
+      if (STATS.equals(command)){
+         XContentBuilder builder = jsonBuilder().startObject();
+         river.statsToXContent(builder);
+         return builder.endObject().string();
+      }
+      throw new IllegalArgumentException("Unknown command " + command);
+   }
+
+   /** @return The node recorded as running a river, null if river is not allocated to any live node */
+   @SuppressWarnings("unchecked")
+   private DiscoveryNode findRiverNode(String riverName){
+      try{
+         GetResponse response = client.prepareGet("_river", riverName, "_status").setRealtime(true).execute().actionGet();
+         if (response.isExists() && response.getSourceAsMap().get("node") instanceof Map){
+            Map<String, Object> node = (Map<String, Object>)response.getSourceAsMap().get("node");
+            String nodeId = XContentMapValues.nodeStringValue(node.get("id"), null);
+            if (nodeId != null){
+               return clusterService.state().nodes().get(nodeId);
+            }
+         }
+      } catch (IndexMissingException ime){
+         // No river at all.
+      }
+      return null;
+   }
+
+   /** Runs the commands forwarded by other nodes. */
+   private class CommandHandler extends BaseTransportRequestHandler<CommandRequest>{
+
+      @Override
+      public CommandRequest newInstance(){
+         return new CommandRequest();
+      }
+
+      @Override
+      public void messageReceived(CommandRequest request, TransportChannel channel) throws Exception{
+         // Never forwarded again, in case river has moved meanwhile.
+         DriveRiver river = registry.get(request.riverName);
+         channel.sendResponse(new CommandResponse(river != null ? executeLocally(river, request.command) : null));
+      }
+
+      @Override
+      public String executor(){
+         return ThreadPool.Names.MANAGEMENT;
+      }
+   }
+
+   /** A command forwarded to the node running river. */
+   static class CommandRequest extends TransportRequest{
+      private String riverName;
+      private String command;
+
+      CommandRequest(){
+      }
+
+      CommandRequest(String riverName, String command){
+         this.riverName = riverName;
+         this.command = command;
+      }
+
+      @Override
+      public void readFrom(StreamInput in) throws IOException{
+         super.readFrom(in);
+         riverName = in.readString();
+         command = in.readString();
+      }
+
+      @Override
+      public void writeTo(StreamOutput out) throws IOException{
+         super.writeTo(out);
+         out.writeString(riverName);
+         out.writeString(command);
+      }
+   }
+
+   /** The output of a forwarded command, null if river was not running on node. */
+   static class CommandResponse extends TransportResponse{
+      private String output;
+
+      CommandResponse(){
+      }
+
+      CommandResponse(String output){
+         this.output = output;
+      }
+
+      @Override
+      public void readFrom(StreamInput in) throws IOException{
+         super.readFrom(in);
+         output = in.readOptionalString();
+      }
+
+      @Override
+      public void writeTo(StreamOutput out) throws IOException{
+         super.writeTo(out);
+         out.writeOptionalString(output);
+      }
+   }
+}
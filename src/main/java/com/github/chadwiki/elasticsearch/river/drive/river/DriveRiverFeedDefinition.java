@@ -18,7 +18,9 @@
  */
 package com.github.chadwiki.elasticsearch.river.drive.river;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 /**
  * A definition bean wrapping information of river feed settings. 
  * @author laurent
@@ -28,21 +30,48 @@ public class DriveRiverFeedDefinition{
    private String feedname;
    private String folder;
    private int updateRate;
+   private int minUpdateRate;
+   private int maxUpdateRate;
    private List<String> includes;
    private List<String> excludes;
+   private DriveTitleFilter titleFilter;
    
    private String clientId;
    private String clientSecret;
    private String refreshToken;
    private boolean jsonSupport;
 
+   private int downloadWorkers = 4;
+   private int extractWorkers = Runtime.getRuntime().availableProcessors();
+   private int queueSize = 20;
+   private int crawlWorkers = 4;
+   private long spillThreshold = 10 * 1024 * 1024;
+   private String tempDir;
+   private String extraFileFields;
+   private Map<String, List<String>> exportFormats = new HashMap<String, List<String>>();
+   private double maxRequestsPerSecond = 10;
+   private int maxRetries = 5;
+   private String pushAddress;
+   private String pushToken;
+   private long pushChannelTtl = 24 * 60 * 60 * 1000L;
+   private long extractTimeout = 60 * 1000L;
+   private long maxExtractSize = 100 * 1024 * 1024L;
+   private int maxExtractedChars = 100 * 1000;
+   private String textCacheDir;
+   private long textCacheSize = 1024 * 1024 * 1024L;
+   private String apiRootUrl;
+   private String tokenServerUrl;
+
    public DriveRiverFeedDefinition(String feedname, String folder, int updateRate, 
          List<String> includes, List<String> excludes, String clientId, String clientSecret, String refreshToken, boolean jsonSupport){
       this.feedname = feedname;
       this.folder = folder;
       this.updateRate = updateRate;
+      this.minUpdateRate = updateRate;
+      this.maxUpdateRate = updateRate;
       this.includes = includes;
       this.excludes = excludes;
+      this.titleFilter = DriveTitleFilter.compile(includes, excludes);
       this.clientId = clientId;
       this.clientSecret = clientSecret;
       this.refreshToken = refreshToken;
@@ -70,11 +99,26 @@ public class DriveRiverFeedDefinition{
       this.updateRate = updateRate;
    }
    
+   public int getMinUpdateRate() {
+      return minUpdateRate;
+   }
+   public void setMinUpdateRate(int minUpdateRate) {
+      this.minUpdateRate = minUpdateRate;
+   }
+   
+   public int getMaxUpdateRate() {
+      return maxUpdateRate;
+   }
+   public void setMaxUpdateRate(int maxUpdateRate) {
+      this.maxUpdateRate = maxUpdateRate;
+   }
+   
    public List<String> getIncludes() {
       return includes;
    }
    public void setIncludes(List<String> includes) {
       this.includes = includes;
+      this.titleFilter = DriveTitleFilter.compile(includes, excludes);
    }
 
    public List<String> getExcludes() {
@@ -82,6 +126,12 @@ public class DriveRiverFeedDefinition{
    }
    public void setExcludes(List<String> excludes) {
       this.excludes = excludes;
+      this.titleFilter = DriveTitleFilter.compile(includes, excludes);
+   }
+
+   /** @return The filter compiled from includes and excludes rules */
+   public DriveTitleFilter getTitleFilter() {
+      return titleFilter;
    }
 
    public String getClientId() {
@@ -106,4 +156,145 @@ public class DriveRiverFeedDefinition{
    }
 
    public boolean isJsonSupport(){ return jsonSupport; }
+
+   public int getDownloadWorkers() {
+      return downloadWorkers;
+   }
+   public void setDownloadWorkers(int downloadWorkers) {
+      this.downloadWorkers = downloadWorkers;
+   }
+
+   public int getExtractWorkers() {
+      return extractWorkers;
+   }
+   public void setExtractWorkers(int extractWorkers) {
+      this.extractWorkers = extractWorkers;
+   }
+
+   public int getQueueSize() {
+      return queueSize;
+   }
+   public void setQueueSize(int queueSize) {
+      this.queueSize = queueSize;
+   }
+
+   public int getCrawlWorkers() {
+      return crawlWorkers;
+   }
+   public void setCrawlWorkers(int crawlWorkers) {
+      this.crawlWorkers = crawlWorkers;
+   }
+
+   public long getSpillThreshold() {
+      return spillThreshold;
+   }
+   public void setSpillThreshold(long spillThreshold) {
+      this.spillThreshold = spillThreshold;
+   }
+
+   public String getTempDir() {
+      return tempDir;
+   }
+   public void setTempDir(String tempDir) {
+      this.tempDir = tempDir;
+   }
+
+   public String getExtraFileFields() {
+      return extraFileFields;
+   }
+   public void setExtraFileFields(String extraFileFields) {
+      this.extraFileFields = extraFileFields;
+   }
+
+   /** @return Export formats by native mime type, overriding the default ones */
+   public Map<String, List<String>> getExportFormats() {
+      return exportFormats;
+   }
+   public void setExportFormats(Map<String, List<String>> exportFormats) {
+      this.exportFormats = exportFormats;
+   }
+
+   public double getMaxRequestsPerSecond() {
+      return maxRequestsPerSecond;
+   }
+   public void setMaxRequestsPerSecond(double maxRequestsPerSecond) {
+      this.maxRequestsPerSecond = maxRequestsPerSecond;
+   }
+
+   public int getMaxRetries() {
+      return maxRetries;
+   }
+   public void setMaxRetries(int maxRetries) {
+      this.maxRetries = maxRetries;
+   }
+
+   public String getPushAddress() {
+      return pushAddress;
+   }
+   public void setPushAddress(String pushAddress) {
+      this.pushAddress = pushAddress;
+   }
+
+   public String getPushToken() {
+      return pushToken;
+   }
+   public void setPushToken(String pushToken) {
+      this.pushToken = pushToken;
+   }
+
+   public long getPushChannelTtl() {
+      return pushChannelTtl;
+   }
+   public void setPushChannelTtl(long pushChannelTtl) {
+      this.pushChannelTtl = pushChannelTtl;
+   }
+
+   public long getExtractTimeout() {
+      return extractTimeout;
+   }
+   public void setExtractTimeout(long extractTimeout) {
+      this.extractTimeout = extractTimeout;
+   }
+
+   public long getMaxExtractSize() {
+      return maxExtractSize;
+   }
+   public void setMaxExtractSize(long maxExtractSize) {
+      this.maxExtractSize = maxExtractSize;
+   }
+
+   public int getMaxExtractedChars() {
+      return maxExtractedChars;
+   }
+   public void setMaxExtractedChars(int maxExtractedChars) {
+      this.maxExtractedChars = maxExtractedChars;
+   }
+
+   public String getTextCacheDir() {
+      return textCacheDir;
+   }
+   public void setTextCacheDir(String textCacheDir) {
+      this.textCacheDir = textCacheDir;
+   }
+
+   public long getTextCacheSize() {
+      return textCacheSize;
+   }
+   public void setTextCacheSize(long textCacheSize) {
+      this.textCacheSize = textCacheSize;
+   }
+
+   public String getApiRootUrl() {
+      return apiRootUrl;
+   }
+   public void setApiRootUrl(String apiRootUrl) {
+      this.apiRootUrl = apiRootUrl;
+   }
+
+   public String getTokenServerUrl() {
+      return tokenServerUrl;
+   }
+   public void setTokenServerUrl(String tokenServerUrl) {
+      this.tokenServerUrl = tokenServerUrl;
+   }
 }
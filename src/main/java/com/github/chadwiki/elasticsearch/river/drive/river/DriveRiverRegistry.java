@@ -0,0 +1,50 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.river;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+/**
+ * A node level registry of the Google Drive rivers running on this node, so that REST
+ * actions can reach them directly rather than going through the _river index.
+ * @author laurent
+ */
+public class DriveRiverRegistry{
+
+   private final ConcurrentMap<String, DriveRiver> rivers = new ConcurrentHashMap<String, DriveRiver>();
+
+   /** Register a river that has started on this node. */
+   public void register(DriveRiver river){
+      rivers.put(river.riverName().name(), river);
+   }
+
+   /** Unregister a river that is closing. */
+   public void unregister(DriveRiver river){
+      rivers.remove(river.riverName().name(), river);
+   }
+
+   /**
+    * Find a river running on this node.
+    * @param riverName The name of river
+    * @return The river, or null if it is not running on this node
+    */
+   public DriveRiver get(String riverName){
+      return rivers.get(riverName);
+   }
+}
@@ -0,0 +1,34 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.river;
+
+import org.elasticsearch.common.inject.AbstractModule;
+/**
+ * Node level bindings shared by Google Drive rivers and REST actions.
+ * @author laurent
+ */
+public class DriveRiverRegistryModule extends AbstractModule{
+
+   @Override
+   protected void configure(){
+      bind(DriveRiverRegistry.class).asEagerSingleton();
+      bind(DriveMemoryBudget.class).asEagerSingleton();
+      bind(DriveRiverCommands.class).asEagerSingleton();
+   }
+}
@@ -18,6 +18,8 @@
  */
 package com.github.chadwiki.elasticsearch.river.drive.river;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -25,6 +27,9 @@ import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.support.XContentMapValues;
 
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.File;
+
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 /**
  * Utility class for Google Drive indexing management.
@@ -40,6 +45,8 @@ public class DriveRiverUtil{
    public static final String DOC_FIELD_SOURCE_URL = "source_url";
    public static final String DOC_FIELD_DESCRIPTION = "description";
    public static final String DOC_FIELD_MODIFYING_USER = "lastModifyingUser";
+   public static final String DOC_FIELD_FINGERPRINT = "fingerprint";
+   public static final String DOC_FIELD_EXTRACTION = "extraction";
 
    /**
     * Build mapping description for Google Drive files.
@@ -55,6 +62,8 @@ public class DriveRiverUtil{
          .startObject(DOC_FIELD_MODIFIED_DATE).field("type", "date").endObject()
          .startObject(DOC_FIELD_SOURCE_URL).field("type", "string").endObject()
          .startObject(DOC_FIELD_DESCRIPTION).field("type", "string").endObject()
+         .startObject(DOC_FIELD_FINGERPRINT).field("type", "string").field("index", "not_analyzed").endObject()
+         .startObject(DOC_FIELD_EXTRACTION).field("type", "string").field("index", "not_analyzed").endObject()
          /*.startObject(DOC_FIELD_MODIFYING_USER).field("type", "string").endObject()*/
          .startObject("file")
             .startObject("properties")
@@ -69,6 +78,59 @@ public class DriveRiverUtil{
       return xbMapping;
    }
    
+   /**
+    * Build the indexed document for a Google Drive file.
+    * @param driveFile The Drive file metadata
+    * @param contentType The mime type of indexed content
+    * @param parsedContent The text extracted from file content, null for indexing metadata only
+    * @param fingerprint The fingerprint of file content, may be null
+    * @param extraction The outcome of content extraction
+    * @return A content builder for document
+    * @throws Exception if something goes wrong
+    */
+   public static XContentBuilder buildDriveDocument(File driveFile, String contentType, String parsedContent,
+         String fingerprint, String extraction) throws Exception{
+      XContentBuilder xb = jsonBuilder().startObject();
+      buildDriveMetadata(xb, driveFile)
+         .field(DOC_FIELD_FINGERPRINT, fingerprint)
+         .field(DOC_FIELD_EXTRACTION, extraction)
+         .startObject("file")
+            .field("_content_type", contentType)
+            .field("_name", driveFile.getTitle())
+            .field("title", driveFile.getTitle())
+            .field("file", parsedContent)
+         .endObject();
+      return xb.endObject();
+   }
+   
+   /**
+    * Build a partial document holding only the metadata of a Google Drive file, for
+    * updating a document whose content has not changed.
+    * @param driveFile The Drive file metadata
+    * @return A content builder for partial document
+    * @throws Exception if something goes wrong
+    */
+   public static XContentBuilder buildDriveMetadataDocument(File driveFile) throws Exception{
+      XContentBuilder xb = jsonBuilder().startObject();
+      buildDriveMetadata(xb, driveFile)
+         .startObject("file")
+            .field("_name", driveFile.getTitle())
+            .field("title", driveFile.getTitle())
+         .endObject();
+      return xb.endObject();
+   }
+   
+   /** Add metadata fields of a Drive file to a started document. */
+   private static XContentBuilder buildDriveMetadata(XContentBuilder xb, File driveFile) throws Exception{
+      return xb
+         .field(DOC_FIELD_TITLE, driveFile.getTitle())
+         .field(DOC_FIELD_CREATED_DATE, driveFile.getCreatedDate().getValue())
+         .field(DOC_FIELD_MODIFIED_DATE, driveFile.getModifiedDate().getValue())
+         .field(DOC_FIELD_SOURCE_URL, driveFile.getAlternateLink())
+         .field(DOC_FIELD_DESCRIPTION, driveFile.getDescription());
+         /*.field(DOC_FIELD_MODIFYING_USER, driveFile.getLastModifyingUser())*/
+   }
+   
    /**
     * Extract array from settings (array or ; delimited String)
     * @param settings Settings
@@ -97,41 +159,33 @@ public class DriveRiverUtil{
       return uniquelist;
    }
    
+   /**
+    * Coalesce changes of a batch so that only the most recent change of each file is kept.
+    * A deletion thus wins over the updates preceding it. Kept changes are ordered by their
+    * position in the batch.
+    * @param changes A batch of changes ordered by change id
+    * @return The changes to process, one per file id
+    */
+   public static List<Change> coalesceChanges(List<Change> changes){
+      Map<String, Change> latestChanges = new LinkedHashMap<String, Change>();
+      for (Change change : changes){
+         Change previous = latestChanges.remove(change.getFileId());
+         if (previous != null && previous.getId() > change.getId()){
+            change = previous;
+         }
+         latestChanges.put(change.getFileId(), change);
+      }
+      return new ArrayList<Change>(latestChanges.values());
+   }
+   
    /**
     * Tells if a Google Drive file is indexable from its title, based on includes
-    * and excludes rules. 
+    * and excludes rules. Rules are compiled on each call.
     * @return true if file should be indexed, false otherwise
+    * @deprecated Compile rules once with {@link DriveTitleFilter#compile(List, List)} instead
     */
+   @Deprecated
    public static boolean isIndexable(String fileTitle, List<String> includes, List<String> excludes){
-      // If no rules specified, we index everything !
-      if ((includes == null && excludes == null) 
-            || (includes.isEmpty() && excludes.isEmpty())){
-         return true;
-      }
-      
-      // Exclude rules : we know that whatever includes rules are, we should exclude matching files.
-      if (excludes != null){
-         for (String exclude : excludes){
-            String regex = exclude.replace("?", ".?").replace("*", ".*?");
-            if (fileTitle.matches(regex)){
-               return false;
-            }
-         }
-      }
-      
-      // Include rules : we should add document if it match include rules.
-      if (includes == null || includes.isEmpty()){
-         return true;
-      }
-      if (includes != null){
-         for (String include : includes){
-            String regex = include.replace("?", ".?").replace("*", ".*?");
-            if (fileTitle.matches(regex)){
-               return true;
-            }
-         }
-      }
-      
-      return false;
+      return DriveTitleFilter.compile(includes, excludes).isIndexable(fileTitle);
    }
 }
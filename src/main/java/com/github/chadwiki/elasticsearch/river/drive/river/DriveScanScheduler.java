@@ -0,0 +1,60 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.river;
+/**
+ * Decides how long a feed waits between two scans. The interval is halved after each scan
+ * that found changes and doubled after each idle one, within minimum and maximum bounds, so that
+ * an active drive is polled often and an idle one rarely.
+ * @author laurent
+ */
+public class DriveScanScheduler{
+
+   private final long minInterval;
+   private final long maxInterval;
+
+   private long interval;
+
+   /**
+    * Build a new scheduler, starting at minimum interval.
+    * @param minInterval Minimum time between two scans in milliseconds
+    * @param maxInterval Maximum time between two scans in milliseconds
+    */
+   public DriveScanScheduler(long minInterval, long maxInterval){
+      this.minInterval = Math.max(1, Math.min(minInterval, maxInterval));
+      this.maxInterval = Math.max(this.minInterval, maxInterval);
+      this.interval = this.minInterval;
+   }
+
+   /** @return The time to wait before next scan in milliseconds */
+   public synchronized long getInterval(){
+      return interval;
+   }
+
+   /**
+    * Adapt interval to the outcome of a scan.
+    * @param foundChanges Whether scan found some changes
+    */
+   public synchronized void onScanned(boolean foundChanges){
+      if (foundChanges){
+         interval = Math.max(minInterval, interval / 2);
+      } else {
+         interval = Math.min(maxInterval, interval * 2);
+      }
+   }
+}
@@ -0,0 +1,193 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.river;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+/**
+ * An on-disk cache of the text extracted from Google Drive contents, keyed by content
+ * fingerprint so that a file whose content did not change is never downloaded nor parsed
+ * twice, whatever the index it is rebuilt into. Entries are compressed files evicted in
+ * least recently used order once cache exceeds its maximum size ; recency survives restarts
+ * as it is kept in files modification time.
+ * <p>
+ * Only complete extractions are cached : skipped ones have no text, and truncated ones depend
+ * on the extraction limits in force, so that both are extracted again once limits are raised.
+ * @author laurent
+ */
+public class DriveTextCache{
+
+   private static final ESLogger logger = Loggers.getLogger(DriveTextCache.class);
+
+   private static final String SUFFIX = ".txt.gz";
+
+   private final File directory;
+   private final long maxSize;
+
+   /** Size of each entry by key, in access order. Guarded by this. */
+   private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+   private long size = 0;
+
+   /**
+    * Open a cache, loading entries left by previous runs.
+    * @param directory The directory holding entries, created if needed
+    * @param maxSize The maximum size in bytes of entries on disk
+    */
+   public DriveTextCache(File directory, long maxSize) throws IOException{
+      this.directory = directory;
+      this.maxSize = maxSize;
+      if (!directory.isDirectory() && !directory.mkdirs()){
+         throw new IOException("Cannot create text cache directory " + directory);
+      }
+      File[] files = directory.listFiles();
+      Arrays.sort(files, new Comparator<File>(){
+         @Override
+         public int compare(File f1, File f2){
+            return f1.lastModified() < f2.lastModified() ? -1 : (f1.lastModified() == f2.lastModified() ? 0 : 1);
+         }
+      });
+      for (File file : files){
+         if (file.getName().endsWith(SUFFIX)){
+            entries.put(file.getName().substring(0, file.getName().length() - SUFFIX.length()), file.length());
+            size += file.length();
+         } else if (file.getName().endsWith(".tmp")){
+            // Left by an interrupted write.
+            file.delete();
+         }
+      }
+      evict();
+      logger.info("Opened text cache {} holding {} entries ({} bytes)", directory, entries.size(), size);
+   }
+
+   /**
+    * Retrieve the text extracted from a content.
+    * @param fingerprint The fingerprint of content
+    * @return The complete extraction recorded for this content, null if not cached
+    */
+   public DriveContentExtractor.Extraction get(String fingerprint){
+      String key = key(fingerprint);
+      File file = new File(directory, key + SUFFIX);
+      synchronized (this){
+         if (entries.get(key) == null){
+            return null;
+         }
+         file.setLastModified(System.currentTimeMillis());
+      }
+      try{
+         Reader reader = new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), DriveContentExtractor.UTF_8);
+         try{
+            StringBuilder content = new StringBuilder();
+            char[] buffer = new char[8192];
+            int len;
+            while ((len = reader.read(buffer)) > 0){
+               content.append(buffer, 0, len);
+            }
+            return new DriveContentExtractor.Extraction(content.toString(), DriveContentExtractor.STATUS_OK);
+         } finally {
+            reader.close();
+         }
+      } catch (IOException ioe){
+         // Entry may have been evicted meanwhile.
+         logger.debug("Failed to read text cache entry {}: {}", key, ioe.getMessage());
+         return null;
+      }
+   }
+
+   /**
+    * Record the text extracted from a content, evicting least recently used entries if needed.
+    * Extractions that are not complete are ignored.
+    * @param fingerprint The fingerprint of content
+    * @param extraction The extraction of content
+    */
+   public void put(String fingerprint, DriveContentExtractor.Extraction extraction){
+      if (!DriveContentExtractor.STATUS_OK.equals(extraction.getStatus())){
+         return;
+      }
+      String key = key(fingerprint);
+      File tmp = null;
+      try{
+         // Write aside so that readers never see a partial entry.
+         tmp = File.createTempFile(key, ".tmp", directory);
+         Writer writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(tmp)), DriveContentExtractor.UTF_8);
+         try{
+            writer.write(extraction.getText());
+         } finally {
+            writer.close();
+         }
+         synchronized (this){
+            File file = new File(directory, key + SUFFIX);
+            file.delete();
+            if (!tmp.renameTo(file)){
+               throw new IOException("Cannot rename " + tmp + " to " + file);
+            }
+            Long previous = entries.put(key, file.length());
+            size += file.length() - (previous != null ? previous : 0);
+            evict();
+         }
+      } catch (IOException ioe){
+         logger.warn("Failed to write text cache entry {}: {}", key, ioe.getMessage());
+         if (tmp != null){
+            tmp.delete();
+         }
+      }
+   }
+
+   /** Remove least recently used entries until cache fits its maximum size. */
+   private synchronized void evict(){
+      Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+      while (size > maxSize && eldest.hasNext()){
+         Map.Entry<String, Long> entry = eldest.next();
+         new File(directory, entry.getKey() + SUFFIX).delete();
+         size -= entry.getValue();
+         eldest.remove();
+      }
+   }
+
+   /** Fingerprints hold characters that are not welcome in file names, use their digest. */
+   private static String key(String fingerprint){
+      try{
+         byte[] digest = MessageDigest.getInstance("MD5").digest(fingerprint.getBytes(DriveContentExtractor.UTF_8));
+         StringBuilder key = new StringBuilder(32);
+         for (byte b : digest){
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+         }
+         return key.toString();
+      } catch (NoSuchAlgorithmException nsae){
+         throw new IllegalStateException(nsae);
+      }
+   }
+}
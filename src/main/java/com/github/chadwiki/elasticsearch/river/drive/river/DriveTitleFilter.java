@@ -0,0 +1,124 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.river;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+/**
+ * A filter on Google Drive file titles built from includes and excludes glob rules. Within
+ * rules, '*' matches any sequence of characters and '?' exactly one character ; any other
+ * character matches itself. Rules are compiled once into a single alternation pattern per
+ * kind, and matchers are reused per thread so that checking a title does not allocate.
+ * @author laurent
+ */
+public class DriveTitleFilter{
+
+   private final Pattern includes;
+   private final Pattern excludes;
+
+   private final ThreadLocal<Matcher> includesMatcher;
+   private final ThreadLocal<Matcher> excludesMatcher;
+
+   private DriveTitleFilter(Pattern includes, Pattern excludes){
+      this.includes = includes;
+      this.excludes = excludes;
+      this.includesMatcher = matcherHolder(includes);
+      this.excludesMatcher = matcherHolder(excludes);
+   }
+
+   /**
+    * Compile includes and excludes rules into a filter.
+    * @param includes Glob rules of titles to index, may be null or empty to index everything
+    * @param excludes Glob rules of titles never to index, may be null or empty
+    * @return A filter ready for use by many threads
+    */
+   public static DriveTitleFilter compile(List<String> includes, List<String> excludes){
+      return new DriveTitleFilter(compileRules(includes), compileRules(excludes));
+   }
+
+   /**
+    * Tells if a Google Drive file is indexable from its title. Excluded titles are never
+    * indexed ; others are if they match an include rule or if there's no include rules.
+    * @param fileTitle The title of file, null being checked as an empty title
+    * @return true if file should be indexed, false otherwise
+    */
+   public boolean isIndexable(String fileTitle){
+      if (fileTitle == null){
+         fileTitle = "";
+      }
+      if (excludes != null && excludesMatcher.get().reset(fileTitle).matches()){
+         return false;
+      }
+      return includes == null || includesMatcher.get().reset(fileTitle).matches();
+   }
+
+   /** Convert a glob rule into an equivalent regular expression. */
+   static String globToRegex(String glob){
+      StringBuilder regex = new StringBuilder(glob.length() + 16);
+      int literalStart = 0;
+      for (int i = 0; i < glob.length(); i++){
+         char c = glob.charAt(i);
+         if (c == '*' || c == '?'){
+            if (i > literalStart){
+               regex.append(Pattern.quote(glob.substring(literalStart, i)));
+            }
+            regex.append(c == '*' ? ".*" : ".");
+            literalStart = i + 1;
+         }
+      }
+      if (literalStart < glob.length()){
+         regex.append(Pattern.quote(glob.substring(literalStart)));
+      }
+      return regex.toString();
+   }
+
+   /** Build a single pattern matching any of the rules, null if there's no rule. */
+   private static Pattern compileRules(List<String> rules){
+      if (rules == null){
+         return null;
+      }
+      StringBuilder alternation = new StringBuilder();
+      for (String rule : rules){
+         if (rule == null || rule.length() == 0){
+            continue;
+         }
+         if (alternation.length() > 0){
+            alternation.append('|');
+         }
+         alternation.append("(?:").append(globToRegex(rule)).append(')');
+      }
+      if (alternation.length() == 0){
+         return null;
+      }
+      return Pattern.compile(alternation.toString(), Pattern.DOTALL);
+   }
+
+   private static ThreadLocal<Matcher> matcherHolder(final Pattern pattern){
+      if (pattern == null){
+         return null;
+      }
+      return new ThreadLocal<Matcher>(){
+         @Override
+         protected Matcher initialValue(){
+            return pattern.matcher("");
+         }
+      };
+   }
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.river;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+/**
+ * The worker pools shared by all the feeds of a river for prefetching changes, crawling folders
+ * and running their indexing pipelines, so that thread count does not grow with the number of
+ * feeds. Slots of each stage are granted in arrival order : as a feed waits for a slot before
+ * queueing each of its files, feeds waiting together are served in turn and a feed with a
+ * large backlog cannot starve the others.
+ * @author laurent
+ */
+public class DriveWorkers{
+
+   private final ExecutorService downloaders;
+   private final ExecutorService extractors;
+   private final ExecutorService crawlers;
+   private final ExecutorService changesPrefetchers;
+   private final Semaphore downloadSlots;
+   private final Semaphore extractSlots;
+
+   /** A queued task holding resources, to be released if task never runs. */
+   interface Abandonable{
+      /** Release the resources held by task, as it is discarded without running. */
+      void abandon();
+   }
+
+   /**
+    * Build new worker pools.
+    * @param settings Global settings used for naming worker threads
+    * @param downloadWorkers Number of threads downloading content
+    * @param extractWorkers Number of threads extracting content
+    * @param crawlWorkers Number of threads listing folders during initial crawls
+    * @param scanWorkers Number of feeds scanned at the same time, each prefetching one changes page
+    * @param queueSize Maximum number of items waiting at each stage
+    */
+   public DriveWorkers(Settings settings, int downloadWorkers, int extractWorkers, int crawlWorkers, int scanWorkers,
+         int queueSize){
+      this.downloaders = Executors.newFixedThreadPool(downloadWorkers,
+            EsExecutors.daemonThreadFactory(settings, "drive_download"));
+      this.extractors = Executors.newFixedThreadPool(extractWorkers,
+            EsExecutors.daemonThreadFactory(settings, "drive_extract"));
+      this.crawlers = Executors.newFixedThreadPool(crawlWorkers,
+            EsExecutors.daemonThreadFactory(settings, "drive_crawl"));
+      this.changesPrefetchers = Executors.newFixedThreadPool(scanWorkers,
+            EsExecutors.daemonThreadFactory(settings, "drive_changes"));
+      this.downloadSlots = new Semaphore(downloadWorkers + queueSize, true);
+      this.extractSlots = new Semaphore(extractWorkers + queueSize, true);
+   }
+
+   ExecutorService getDownloaders(){
+      return downloaders;
+   }
+
+   ExecutorService getExtractors(){
+      return extractors;
+   }
+
+   ExecutorService getCrawlers(){
+      return crawlers;
+   }
+
+   ExecutorService getChangesPrefetchers(){
+      return changesPrefetchers;
+   }
+
+   Semaphore getDownloadSlots(){
+      return downloadSlots;
+   }
+
+   Semaphore getExtractSlots(){
+      return extractSlots;
+   }
+
+   /** Stop the worker threads, pending items are discarded and their resources released. */
+   public void close(){
+      abandon(downloaders.shutdownNow());
+      abandon(extractors.shutdownNow());
+      abandon(crawlers.shutdownNow());
+      changesPrefetchers.shutdownNow();
+      try{
+         downloaders.awaitTermination(10, TimeUnit.SECONDS);
+         extractors.awaitTermination(10, TimeUnit.SECONDS);
+         crawlers.awaitTermination(10, TimeUnit.SECONDS);
+         changesPrefetchers.awaitTermination(10, TimeUnit.SECONDS);
+      } catch (InterruptedException ie){
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   private static void abandon(List<Runnable> tasks){
+      for (Runnable task : tasks){
+         if (task instanceof Abandonable){
+            ((Abandonable)task).abandon();
+         }
+      }
+   }
+}
@@ -18,17 +18,44 @@
  */
 package com.github.chadwiki.elasticsearch.river.drive.river;
 
+import java.util.Map;
+
 import org.apache.tika.Tika;
+import org.apache.tika.config.TikaConfig;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.mime.MediaTypeRegistry;
+import org.apache.tika.parser.CompositeParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
 /**
  * Simple singleton holder for Apache Tika.
  * @author laurent
  */
 public class TikaHolder {
 
-   private static final Tika tika = new Tika();
+   private static final TikaConfig config = TikaConfig.getDefaultConfig();
+
+   private static final Tika tika = new Tika(config);
+
+   /** The leaf parsers of default configuration, by supported type. */
+   private static final Map<MediaType, Parser> parsers = ((CompositeParser)config.getParser()).getParsers(new ParseContext());
 
    /** @return This holder singleton's instance. */
    public static Tika tika(){
       return tika;
    }
+
+   /**
+    * Find the parser dedicated to a content type, so that content goes through no detection.
+    * @param contentType The declared content type, may be null
+    * @return The parser of this type or of one of its aliases, null if type has no dedicated parser
+    */
+   public static Parser parser(String contentType){
+      MediaType type = contentType != null ? MediaType.parse(contentType) : null;
+      if (type == null){
+         return null;
+      }
+      MediaTypeRegistry registry = config.getMediaTypeRegistry();
+      return parsers.get(registry.normalize(type.getBaseType()));
+   }
 }
@@ -0,0 +1,184 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.connector;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.drive.model.File;
+/**
+ * Test the retries of DriveConnector against a local fake Drive endpoint injecting
+ * throttling and server errors.
+ * @author laurent
+ */
+public class DriveConnectorRetryTest extends TestCase{
+
+   private static final String JSON = FakeDrive.JSON;
+   private static final String BOUNDARY = "batch_test";
+
+   private FakeDrive drive;
+   private DriveConnector connector;
+
+   @Override
+   protected void setUp() throws Exception{
+      drive = new FakeDrive();
+      connector = new DriveConnector("clientId", "clientSecret", "refreshToken");
+      connector.setRootUrl(drive.getRootUrl());
+      connector.setTokenServerUrl(drive.getTokenServerUrl());
+      connector.setMaxRequestsPerSecond(1000);
+      connector.setMaxRetries(3);
+      connector.connectUserDrive(null);
+   }
+
+   @Override
+   protected void tearDown() throws Exception{
+      drive.close();
+   }
+
+   public void testRetriesThrottledApiCall() throws Exception{
+      drive.reply("/drive/v2/about", 429, JSON, error(429, "rateLimitExceeded"));
+      drive.reply("/drive/v2/about", 403, JSON, error(403, "rateLimitExceeded"));
+      drive.reply("/drive/v2/about", 200, JSON, "{\"largestChangeId\":\"42\"}");
+
+      assertEquals(42, connector.getLargestChangeId());
+      assertEquals(3, drive.getRequests("/drive/v2/about"));
+      assertTrue(connector.getRateLimiter().getRate() < 1000);
+   }
+
+   public void testRetriesThrottledDownload() throws Exception{
+      drive.reply("/download/f1", 403, JSON, error(403, "userRateLimitExceeded"));
+      drive.reply("/download/f1", 200, "text/plain", "Hello Drive");
+
+      DriveContent content = connector.downloadContent(new File().setId("f1").setDownloadUrl(drive.getRootUrl() + "download/f1"));
+      try{
+         assertEquals("Hello Drive", new String(content.toByteArray(), "UTF-8"));
+      } finally {
+         content.close();
+      }
+      assertEquals(2, drive.getRequests("/download/f1"));
+      assertTrue(connector.getRateLimiter().getRate() < 1000);
+   }
+
+   public void testRetriesThrottledBatch() throws Exception{
+      drive.reply("/batch", 403, JSON, error(403, "rateLimitExceeded"));
+      drive.reply("/batch", 200, "multipart/mixed; boundary=" + BOUNDARY,
+            "--" + BOUNDARY + "\r\n" + part(1, "200 OK", "{\"id\":\"f1\",\"title\":\"First\"}")
+            + "--" + BOUNDARY + "\r\n" + part(2, "404 Not Found", error(404, "notFound"))
+            + "--" + BOUNDARY + "--\r\n");
+
+      Map<String, File> files = connector.getFiles(Arrays.asList("f1", "f2"));
+      assertEquals(1, files.size());
+      assertEquals("First", files.get("f1").getTitle());
+      assertEquals(2, drive.getRequests("/batch"));
+   }
+
+   public void testRetriesServerErrorsUntilExhausted() throws Exception{
+      drive.reply("/drive/v2/about", 503, JSON, error(503, "backendError"));
+
+      try{
+         connector.getLargestChangeId();
+         fail("Exhausted retries should fail");
+      } catch (HttpResponseException hre){
+         assertEquals(503, hre.getStatusCode());
+      }
+      assertEquals(4, drive.getRequests("/drive/v2/about"));
+   }
+
+   public void testDoesNotRetryForbiddenDownload() throws Exception{
+      drive.reply("/download/f1", 403, JSON, error(403, "insufficientPermissions"));
+
+      try{
+         connector.downloadContent(new File().setId("f1").setDownloadUrl(drive.getRootUrl() + "download/f1"));
+         fail("Forbidden download should fail");
+      } catch (HttpResponseException hre){
+         assertEquals(403, hre.getStatusCode());
+      }
+      assertEquals(1, drive.getRequests("/download/f1"));
+      assertEquals(1000.0, connector.getRateLimiter().getRate());
+   }
+
+   public void testReadsThrottlingReasonFromErrorDetails() throws Exception{
+      // Only the reason of errors tells throttling, not their message.
+      drive.reply("/download/f1", 403, JSON, FakeDrive.error(403, "forbidden", "rateLimitExceeded"));
+      drive.reply("/download/f2", 403, "text/html", "<html><body>Forbidden</body></html>");
+
+      for (String id : Arrays.asList("f1", "f2")){
+         try{
+            connector.downloadContent(new File().setId(id).setDownloadUrl(drive.getRootUrl() + "download/" + id));
+            fail("Forbidden download should fail");
+         } catch (HttpResponseException hre){
+            assertEquals(403, hre.getStatusCode());
+         }
+         assertEquals(1, drive.getRequests("/download/" + id));
+      }
+   }
+
+   public void testRetriesNetworkFailuresOnly() throws Exception{
+      final AtomicInteger attempts = new AtomicInteger();
+      String result = connector.execute(new DriveConnector.DriveCall<String>(){
+         @Override
+         public String call() throws IOException{
+            if (attempts.incrementAndGet() == 1){
+               throw new ConnectException("Connection refused");
+            }
+            return "done";
+         }
+      });
+      assertEquals("done", result);
+      assertEquals(2, attempts.get());
+
+      attempts.set(0);
+      try{
+         connector.execute(new DriveConnector.DriveCall<String>(){
+            @Override
+            public String call() throws IOException{
+               attempts.incrementAndGet();
+               throw new IOException("No space left on device");
+            }
+         });
+         fail("Local failure should not be retried");
+      } catch (IOException ioe){
+         assertEquals(1, attempts.get());
+      }
+   }
+
+   public void testRejectsNonPositiveRate(){
+      try{
+         connector.setMaxRequestsPerSecond(0);
+         fail("A zero rate would block requests forever");
+      } catch (IllegalArgumentException iae){
+         // Expected.
+      }
+   }
+
+   private static String error(int code, String reason){
+      return FakeDrive.error(code, reason, reason);
+   }
+
+   private static String part(int id, String status, String json){
+      return "Content-Type: application/http\r\nContent-ID: <response-" + id + ">\r\n\r\n"
+            + "HTTP/1.1 " + status + "\r\nContent-Type: " + JSON + "\r\n\r\n" + json + "\r\n";
+   }
+}
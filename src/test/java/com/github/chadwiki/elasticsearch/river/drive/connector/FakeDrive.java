@@ -0,0 +1,201 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.connector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+/**
+ * A local HTTP server playing the part of Google Drive in tests. OAuth token refreshes always
+ * succeed ; other paths are answered with the replies scripted for them, served in order and
+ * the last one over and over, or by {@link #answer(HttpExchange, String, byte[])} that
+ * subclasses override for simulating a whole drive. Point a connector at it with
+ * {@link #getRootUrl()} and {@link #getTokenServerUrl()}.
+ * @author laurent
+ */
+public class FakeDrive implements HttpHandler{
+
+   private static final ESLogger logger = Loggers.getLogger(FakeDrive.class);
+
+   /** The content type of Drive API responses. */
+   public static final String JSON = "application/json; charset=UTF-8";
+
+   private static final String TOKEN_PATH = "/o/oauth2/token";
+
+   private final HttpServer server;
+   private final ExecutorService executor;
+   private final Map<String, LinkedList<String[]>> replies = new HashMap<String, LinkedList<String[]>>();
+   private final Map<String, Integer> requests = new HashMap<String, Integer>();
+   private final Map<String, byte[]> lastRequests = new HashMap<String, byte[]>();
+
+   /** Start a fake Drive serving requests one at a time on a free local port. */
+   public FakeDrive() throws IOException{
+      this(0);
+   }
+
+   /**
+    * Start a fake Drive on a free local port.
+    * @param threads The number of threads serving requests, 0 for serving them one at a time
+    */
+   public FakeDrive(int threads) throws IOException{
+      // Without it, responses written in two parts wait for delayed acks and every call takes 40ms.
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+      executor = threads > 0 ? Executors.newFixedThreadPool(threads, EsExecutors.daemonThreadFactory("fake_drive")) : null;
+      server.createContext("/", this);
+      server.setExecutor(executor);
+      server.start();
+   }
+
+   /** @return The url to use as connector root url */
+   public String getRootUrl(){
+      return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+   }
+
+   /** @return The url to use as connector token server url */
+   public String getTokenServerUrl(){
+      return getRootUrl() + TOKEN_PATH.substring(1);
+   }
+
+   /**
+    * Script the next reply to a path, after the ones already scripted.
+    * @param path The path of requests, without query
+    * @param status The status of reply
+    * @param contentType The content type of reply
+    * @param body The body of reply
+    */
+   public synchronized void reply(String path, int status, String contentType, String body){
+      if (!replies.containsKey(path)){
+         replies.put(path, new LinkedList<String[]>());
+         requests.put(path, 0);
+      }
+      replies.get(path).add(new String[]{String.valueOf(status), contentType, body});
+   }
+
+   /** @return The number of requests received on a path having scripted replies */
+   public synchronized int getRequests(String path){
+      return requests.containsKey(path) ? requests.get(path) : 0;
+   }
+
+   /** @return The body of last request received on a path having scripted replies, null if none */
+   public synchronized String getLastRequest(String path) throws IOException{
+      return lastRequests.containsKey(path) ? new String(lastRequests.get(path), "UTF-8") : null;
+   }
+
+   /** Stop serving. */
+   public void close(){
+      server.stop(0);
+      if (executor != null){
+         executor.shutdownNow();
+      }
+   }
+
+   @Override
+   public void handle(HttpExchange exchange) throws IOException{
+      try{
+         String path = exchange.getRequestURI().getPath();
+         byte[] body = drain(exchange);
+         if (TOKEN_PATH.equals(path)){
+            sendJson(exchange, 200, "{\"access_token\":\"fake\",\"token_type\":\"Bearer\",\"expires_in\":3600}");
+            return;
+         }
+         String[] reply = nextReply(path, body);
+         if (reply != null){
+            exchange.getResponseHeaders().set("Content-Type", reply[1]);
+            send(exchange, Integer.parseInt(reply[0]), reply[2].getBytes("UTF-8"));
+         } else {
+            answer(exchange, path, body);
+         }
+      } catch (RuntimeException re){
+         logger.warn("Fake Drive failed to answer {}", re, exchange.getRequestURI());
+         sendError(exchange, 500, "internalError", String.valueOf(re));
+      } finally {
+         exchange.close();
+      }
+   }
+
+   /**
+    * Answer a request on a path without scripted replies, as not found.
+    * @param exchange The exchange to answer
+    * @param path The path of request
+    * @param body The body of request, already read
+    */
+   protected void answer(HttpExchange exchange, String path, byte[] body) throws IOException{
+      sendError(exchange, 404, "notFound", "Unknown path " + path);
+   }
+
+   /** @return The JSON body of a Drive error response */
+   public static String error(int code, String reason, String message){
+      return "{\"error\":{\"errors\":[{\"domain\":\"global\",\"reason\":\"" + reason + "\",\"message\":\""
+            + message.replace("\"", "'") + "\"}],\"code\":" + code + ",\"message\":\"" + message.replace("\"", "'") + "\"}}";
+   }
+
+   protected static void sendError(HttpExchange exchange, int code, String reason, String message) throws IOException{
+      sendJson(exchange, code, error(code, reason, message));
+   }
+
+   protected static void sendJson(HttpExchange exchange, int code, String json) throws IOException{
+      exchange.getResponseHeaders().set("Content-Type", JSON);
+      send(exchange, code, json.getBytes("UTF-8"));
+   }
+
+   protected static void send(HttpExchange exchange, int code, byte[] body) throws IOException{
+      exchange.sendResponseHeaders(code, body.length);
+      OutputStream os = exchange.getResponseBody();
+      os.write(body);
+      os.close();
+   }
+
+   private synchronized String[] nextReply(String path, byte[] body){
+      LinkedList<String[]> pathReplies = replies.get(path);
+      if (pathReplies == null){
+         return null;
+      }
+      requests.put(path, requests.get(path) + 1);
+      lastRequests.put(path, body);
+      return pathReplies.size() > 1 ? pathReplies.removeFirst() : pathReplies.getFirst();
+   }
+
+   private static byte[] drain(HttpExchange exchange) throws IOException{
+      InputStream is = exchange.getRequestBody();
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int len = is.read(buffer);
+      while (len > 0){
+         bytes.write(buffer, 0, len);
+         len = is.read(buffer);
+      }
+      return bytes.toByteArray();
+   }
+}
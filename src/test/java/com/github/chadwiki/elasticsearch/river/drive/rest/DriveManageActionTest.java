@@ -0,0 +1,111 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.rest;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.github.chadwiki.elasticsearch.river.drive.connector.FakeDrive;
+/**
+ * Test the management commands against a river running on one node of a two nodes cluster,
+ * sending commands to the other node as well.
+ * @author laurent
+ */
+public class DriveManageActionTest extends TestCase{
+
+   private static final String RIVER_NAME = "managed";
+   private static final String CHANGES_PATH = "/drive/v2/changes";
+   private static final String FILES_PATH = "/drive/v2/files";
+   private static final long TIMEOUT_MILLIS = 30000;
+
+   private FakeDrive drive;
+   private DriveTestCluster cluster;
+   private int riverNode;
+
+   @Override
+   protected void setUp() throws Exception{
+      drive = new FakeDrive();
+      drive.reply("/drive/v2/about", 200, FakeDrive.JSON, "{\"largestChangeId\":\"1\"}");
+      drive.reply(FILES_PATH, 200, FakeDrive.JSON, "{\"items\":[]}");
+      drive.reply(CHANGES_PATH, 200, FakeDrive.JSON, "{\"items\":[],\"largestChangeId\":\"1\"}");
+      cluster = new DriveTestCluster(2);
+      // Polling so seldom that only commands trigger scans.
+      Map<String, Object> settings = new HashMap<String, Object>();
+      settings.put("update_rate", 3600000);
+      cluster.createRiver(RIVER_NAME, drive, settings);
+      riverNode = cluster.getRiverNode(RIVER_NAME);
+      assertTrue("River is not running", riverNode >= 0);
+   }
+
+   @Override
+   protected void tearDown() throws Exception{
+      try{
+         if (cluster != null){
+            cluster.close();
+         }
+      } finally {
+         drive.close();
+      }
+   }
+
+   public void testScansOnRiverNode() throws Exception{
+      assertRequested(riverNode, "_scan", CHANGES_PATH);
+   }
+
+   public void testForwardsScanToRiverNode() throws Exception{
+      assertRequested(1 - riverNode, "_scan", CHANGES_PATH);
+   }
+
+   public void testForwardsReindexToRiverNode() throws Exception{
+      // Reindexing crawls folders again rather than reading changes.
+      assertRequested(1 - riverNode, "_reindex", FILES_PATH);
+   }
+
+   public void testRejectsUnknownRiver() throws Exception{
+      assertEquals(404, get(riverNode, "/_drive/unknown/_scan"));
+      assertEquals(404, get(1 - riverNode, "/_drive/unknown/_scan"));
+      assertEquals(404, get(1 - riverNode, "/_drive/unknown/_reindex"));
+   }
+
+   /** Send a command to a node and wait for river to call Drive on a path. */
+   private void assertRequested(int node, String command, String path) throws Exception{
+      int requests = drive.getRequests(path);
+      assertEquals(200, get(node, "/_drive/" + RIVER_NAME + "/" + command));
+      long start = System.currentTimeMillis();
+      while (drive.getRequests(path) == requests){
+         assertTrue("Command " + command + " did not reach river", System.currentTimeMillis() - start < TIMEOUT_MILLIS);
+         Thread.sleep(100);
+      }
+   }
+
+   /** @return The status of response to a GET request on a node */
+   private int get(int node, String path) throws IOException{
+      HttpURLConnection connection = (HttpURLConnection)new URL(cluster.getHttpUrl(node) + path).openConnection();
+      try{
+         return connection.getResponseCode();
+      } finally {
+         connection.disconnect();
+      }
+   }
+}
@@ -0,0 +1,153 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.rest;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+
+import com.github.chadwiki.elasticsearch.river.drive.connector.FakeDrive;
+import com.github.chadwiki.elasticsearch.river.drive.river.DriveRiverRegistry;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+/**
+ * Test the notifications endpoint against a river running on an embedded node, the river
+ * polling a fake Drive so seldom that only notifications trigger its scans. Notifications are
+ * handled before being answered, so their outcome is checked at once on the river counters.
+ * @author laurent
+ */
+public class DriveNotificationActionTest extends TestCase{
+
+   private static final String RIVER_NAME = "notified";
+   private static final String TOKEN = "secret";
+   private static final String CHANGES_PATH = "/drive/v2/changes";
+   private static final String WATCH_PATH = "/drive/v2/changes/watch";
+   private static final long TIMEOUT_MILLIS = 30000;
+
+   private FakeDrive drive;
+   private DriveTestCluster cluster;
+   private String channelId;
+
+   @Override
+   protected void setUp() throws Exception{
+      drive = new FakeDrive();
+      drive.reply("/drive/v2/about", 200, FakeDrive.JSON, "{\"largestChangeId\":\"1\"}");
+      drive.reply("/drive/v2/files", 200, FakeDrive.JSON, "{\"items\":[]}");
+      drive.reply(CHANGES_PATH, 200, FakeDrive.JSON, "{\"items\":[],\"largestChangeId\":\"1\"}");
+      drive.reply(WATCH_PATH, 200, FakeDrive.JSON, "{\"kind\":\"api#channel\",\"resourceId\":\"changes\",\"expiration\":\""
+            + (System.currentTimeMillis() + 3600000) + "\"}");
+      drive.reply("/drive/v2/channels/stop", 204, FakeDrive.JSON, "");
+      cluster = new DriveTestCluster(1);
+      Map<String, Object> settings = new HashMap<String, Object>();
+      settings.put("update_rate", 3600000);
+      settings.put("push_address", "https://search.example.com/_drive/" + RIVER_NAME + "/_notify");
+      settings.put("push_token", TOKEN);
+      cluster.createRiver(RIVER_NAME, drive, settings);
+
+      // Channel is opened apart from the initial crawl.
+      long start = System.currentTimeMillis();
+      while ((channelId = XContentMapValues.nodeStringValue(getNotificationStats().get("channel_id"), null)) == null){
+         assertTrue("River did not open a notification channel", System.currentTimeMillis() - start < TIMEOUT_MILLIS);
+         Thread.sleep(100);
+      }
+   }
+
+   @Override
+   protected void tearDown() throws Exception{
+      try{
+         if (cluster != null){
+            cluster.close();
+         }
+      } finally {
+         drive.close();
+      }
+   }
+
+   public void testRejectsWrongToken() throws Exception{
+      assertEquals(403, notify(RIVER_NAME, channelId, "wrong", "change"));
+      assertEquals(0, getNotifications("received"));
+      assertEquals(0, getNotifications("wake_ups"));
+   }
+
+   public void testIgnoresSync() throws Exception{
+      assertEquals(200, notify(RIVER_NAME, channelId, TOKEN, "sync"));
+      assertEquals(1, getNotifications("received"));
+      assertEquals(0, getNotifications("wake_ups"));
+   }
+
+   public void testIgnoresOtherChannels() throws Exception{
+      assertEquals(200, notify(RIVER_NAME, "other", TOKEN, "change"));
+      assertEquals(1, getNotifications("received"));
+      assertEquals(0, getNotifications("wake_ups"));
+   }
+
+   public void testScansOnChange() throws Exception{
+      int scans = drive.getRequests(CHANGES_PATH);
+      assertEquals(200, notify(RIVER_NAME, channelId, TOKEN, "change"));
+      assertEquals(1, getNotifications("wake_ups"));
+      long start = System.currentTimeMillis();
+      while (drive.getRequests(CHANGES_PATH) == scans){
+         assertTrue("Notification did not trigger a scan", System.currentTimeMillis() - start < TIMEOUT_MILLIS);
+         Thread.sleep(100);
+      }
+   }
+
+   public void testRejectsUnknownRiver() throws Exception{
+      assertEquals(404, notify("unknown", channelId, TOKEN, "change"));
+   }
+
+   /** @return The status of notification response */
+   private int notify(String riverName, String channelId, String token, String state) throws IOException{
+      URL url = new URL(cluster.getHttpUrl(0) + "/_drive/" + riverName + "/_notify");
+      HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+      try{
+         connection.setRequestMethod("POST");
+         connection.setRequestProperty(DriveNotificationAction.CHANNEL_ID_HEADER, channelId);
+         connection.setRequestProperty(DriveNotificationAction.CHANNEL_TOKEN_HEADER, token);
+         connection.setRequestProperty(DriveNotificationAction.RESOURCE_STATE_HEADER, state);
+         return connection.getResponseCode();
+      } finally {
+         connection.disconnect();
+      }
+   }
+
+   /** @return A notifications counter of the single feed of river */
+   private long getNotifications(String counter) throws IOException{
+      return XContentMapValues.nodeLongValue(getNotificationStats().get(counter));
+   }
+
+   /** @return The notifications stats of the single feed of river */
+   @SuppressWarnings("unchecked")
+   private Map<String, Object> getNotificationStats() throws IOException{
+      XContentBuilder builder = jsonBuilder().startObject();
+      cluster.getInstance(0, DriveRiverRegistry.class).get(RIVER_NAME).statsToXContent(builder).endObject();
+      Map<String, Object> stats = XContentHelper.convertToMap(builder.bytes(), false).v2();
+      Map<String, Object> feed = ((List<Map<String, Object>>)stats.get("feeds")).get(0);
+      return (Map<String, Object>)feed.get("notifications");
+   }
+}
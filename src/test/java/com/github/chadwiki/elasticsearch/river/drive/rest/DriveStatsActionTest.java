@@ -0,0 +1,104 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.rest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.xcontent.XContentHelper;
+
+import com.github.chadwiki.elasticsearch.river.drive.connector.FakeDrive;
+/**
+ * Test the stats endpoint against a river running on one node of a two nodes cluster.
+ * @author laurent
+ */
+public class DriveStatsActionTest extends TestCase{
+
+   private static final String RIVER_NAME = "measured";
+
+   private FakeDrive drive;
+   private DriveTestCluster cluster;
+   private int riverNode;
+
+   @Override
+   protected void setUp() throws Exception{
+      drive = new FakeDrive();
+      drive.reply("/drive/v2/about", 200, FakeDrive.JSON, "{\"largestChangeId\":\"1\"}");
+      drive.reply("/drive/v2/files", 200, FakeDrive.JSON, "{\"items\":[]}");
+      cluster = new DriveTestCluster(2);
+      Map<String, Object> settings = new HashMap<String, Object>();
+      settings.put("update_rate", 3600000);
+      cluster.createRiver(RIVER_NAME, drive, settings);
+      riverNode = cluster.getRiverNode(RIVER_NAME);
+      assertTrue("River is not running", riverNode >= 0);
+   }
+
+   @Override
+   protected void tearDown() throws Exception{
+      try{
+         if (cluster != null){
+            cluster.close();
+         }
+      } finally {
+         drive.close();
+      }
+   }
+
+   public void testReadsStatsOnRiverNode() throws Exception{
+      assertStats(riverNode);
+   }
+
+   public void testForwardsStatsToRiverNode() throws Exception{
+      assertStats(1 - riverNode);
+   }
+
+   public void testRejectsUnknownRiver() throws Exception{
+      HttpURLConnection connection = open(1 - riverNode, "/_drive/unknown/_stats");
+      try{
+         assertEquals(404, connection.getResponseCode());
+      } finally {
+         connection.disconnect();
+      }
+   }
+
+   private void assertStats(int node) throws IOException{
+      HttpURLConnection connection = open(node, "/_drive/" + RIVER_NAME + "/_stats?pretty");
+      try{
+         assertEquals(200, connection.getResponseCode());
+         InputStream is = connection.getInputStream();
+         Map<String, Object> stats = XContentHelper.convertToMap(Streams.copyToByteArray(is), false).v2();
+         assertEquals(RIVER_NAME, stats.get("river"));
+         assertTrue(stats.containsKey("feeds"));
+         assertTrue(stats.containsKey("bulk"));
+      } finally {
+         connection.disconnect();
+      }
+   }
+
+   private HttpURLConnection open(int node, String path) throws IOException{
+      return (HttpURLConnection)new URL(cluster.getHttpUrl(node) + path).openConnection();
+   }
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.rest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.io.FileSystemUtils;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+import org.elasticsearch.node.internal.InternalNode;
+
+import com.github.chadwiki.elasticsearch.river.drive.connector.FakeDrive;
+import com.github.chadwiki.elasticsearch.river.drive.river.DriveRiverRegistry;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+/**
+ * Local Elasticsearch nodes embedded in tests, forming a cluster of their own whose rivers
+ * poll a {@link FakeDrive}.
+ * @author laurent
+ */
+public class DriveTestCluster{
+
+   private static final long TIMEOUT_MILLIS = 30000;
+
+   private final File dataDir;
+   private final List<Node> nodes = new ArrayList<Node>();
+
+   /**
+    * Start a cluster and wait for all its nodes to have joined.
+    * @param size The number of nodes
+    */
+   public DriveTestCluster(int size){
+      dataDir = new File(System.getProperty("java.io.tmpdir"), "drive-cluster-" + System.nanoTime());
+      try{
+         for (int i = 0; i < size; i++){
+            nodes.add(NodeBuilder.nodeBuilder().local(true).settings(ImmutableSettings.settingsBuilder()
+                  .put("cluster.name", dataDir.getName())
+                  .put("node.name", "node" + i)
+                  .put("path.data", dataDir.getAbsolutePath())
+                  .put("http.host", "127.0.0.1")
+                  .put("gateway.type", "none")
+                  .put("index.number_of_shards", 1)
+                  .put("index.number_of_replicas", 0)).node());
+         }
+         client().admin().cluster().prepareHealth().setWaitForNodes(String.valueOf(size))
+               .setWaitForYellowStatus().execute().actionGet();
+      } catch (RuntimeException re){
+         close();
+         throw re;
+      }
+   }
+
+   /** @return A client of the cluster */
+   public Client client(){
+      return nodes.get(0).client();
+   }
+
+   /** @return The base url of the REST endpoints of a node, without trailing slash */
+   public String getHttpUrl(int node){
+      InetSocketTransportAddress http = (InetSocketTransportAddress)nodes.get(node).client().admin().cluster()
+            .prepareNodesInfo("_local").setHttp(true).execute().actionGet().getNodes()[0].getHttp().getAddress().publishAddress();
+      return "http://127.0.0.1:" + http.address().getPort();
+   }
+
+   /**
+    * Create a river polling a fake Drive into an index of the same name, then wait for its
+    * initial crawl to be done.
+    * @param riverName The name of river
+    * @param drive The fake Drive river connects to
+    * @param settings The google-drive settings of river beyond credentials and urls
+    */
+   public void createRiver(String riverName, FakeDrive drive, Map<String, Object> settings) throws Exception{
+      XContentBuilder source = jsonBuilder().startObject()
+            .field("type", "google-drive")
+            .startObject("google-drive")
+               .field("clientId", "clientId")
+               .field("clientSecret", "clientSecret")
+               .field("refreshToken", "refreshToken")
+               .field("api_root_url", drive.getRootUrl())
+               .field("token_server_url", drive.getTokenServerUrl());
+      for (Map.Entry<String, Object> setting : settings.entrySet()){
+         source.field(setting.getKey(), setting.getValue());
+      }
+      source.endObject()
+            .startObject("index")
+               .field("index", riverName)
+            .endObject()
+         .endObject();
+      client().prepareIndex("_river", riverName, "_meta").setSource(source).execute().actionGet();
+
+      // River records its position once initial crawl is done.
+      long start = System.currentTimeMillis();
+      while (!client().prepareGet("_river", riverName, "_lastChangesId").setRealtime(true).execute().actionGet().isExists()){
+         Assert.assertTrue("River did not start in time", System.currentTimeMillis() - start < TIMEOUT_MILLIS);
+         Thread.sleep(100);
+      }
+   }
+
+   /** @return The index of the node running a river, -1 if none */
+   public int getRiverNode(String riverName){
+      for (int i = 0; i < nodes.size(); i++){
+         if (getInstance(i, DriveRiverRegistry.class).get(riverName) != null){
+            return i;
+         }
+      }
+      return -1;
+   }
+
+   /** @return The instance of a node level component of a node */
+   public <T> T getInstance(int node, Class<T> type){
+      return ((InternalNode)nodes.get(node)).injector().getInstance(type);
+   }
+
+   /** Stop all nodes and remove their data. */
+   public void close(){
+      try{
+         for (Node node : nodes){
+            node.close();
+         }
+      } finally {
+         FileSystemUtils.deleteRecursively(dataDir);
+      }
+   }
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.river;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.rest.RestStatus;
+
+import com.google.api.services.drive.model.Change;
+/**
+ * Test how adaptive mode sizes bulks.
+ * @author laurent
+ */
+public class DriveBulkSinkTest extends TestCase{
+
+   private static final int BULK_ACTIONS = 10;
+
+   private final AtomicInteger executedBulks = new AtomicInteger();
+   private DriveBulkSink sink;
+   private BulkProcessor bulkProcessor;
+
+   @Override
+   protected void setUp() throws Exception{
+      // Without client, bulks are executed and reported as failed right away.
+      bulkProcessor = BulkProcessor.builder(null, new BulkProcessor.Listener(){
+         @Override
+         public void beforeBulk(long id, BulkRequest request){
+            executedBulks.incrementAndGet();
+            sink.beforeBulk(request.numberOfActions());
+         }
+         @Override
+         public void afterBulk(long id, BulkRequest request, BulkResponse response){
+         }
+         @Override
+         public void afterBulk(long id, BulkRequest request, Throwable failure){
+         }
+      }).setConcurrentRequests(0).setBulkActions(BULK_ACTIONS * 10).build();
+      sink = new DriveBulkSink(bulkProcessor, new DriveMemoryBudget(1 << 20).newAccount(), 1, BULK_ACTIONS, true, 1000);
+   }
+
+   @Override
+   protected void tearDown() throws Exception{
+      bulkProcessor.close();
+   }
+
+   public void testFlushesOnceTargetIsReached(){
+      add(BULK_ACTIONS - 1);
+      assertEquals(0, executedBulks.get());
+      add(1);
+      assertEquals(1, executedBulks.get());
+   }
+
+   public void testCountsFromBulksFlushedByProcessor(){
+      add(BULK_ACTIONS - 1);
+      // As processor would do once its size in bytes or its flush interval is reached.
+      bulkProcessor.flush();
+      assertEquals(1, executedBulks.get());
+      add(BULK_ACTIONS - 1);
+      assertEquals(1, executedBulks.get());
+   }
+
+   public void testHalvesBulksRejectedForLackOfCapacity(){
+      sink.afterBulk(null, response(RestStatus.TOO_MANY_REQUESTS), null, 0);
+      assertEquals(BULK_ACTIONS / 2, sink.getTargetActions());
+      sink.afterBulk(null, response(RestStatus.SERVICE_UNAVAILABLE), null, 0);
+      assertEquals(BULK_ACTIONS / 4, sink.getTargetActions());
+   }
+
+   public void testGrowsBulksWithOtherItemFailures(){
+      sink.afterBulk(null, response(RestStatus.BAD_REQUEST), null, 0);
+      assertEquals(BULK_ACTIONS + 1, sink.getTargetActions());
+   }
+
+   private void add(int count){
+      for (int i = 0; i < count; i++){
+         Change change = new Change().setId((long)i).setFileId("file" + i);
+         sink.add(change, new DriveAckTracker(), new IndexRequest("drive", "doc", change.getFileId()).source("{}"));
+      }
+   }
+
+   /** @return A bulk response whose single item failed with given status */
+   private static BulkResponse response(RestStatus status){
+      BulkItemResponse.Failure failure = new BulkItemResponse.Failure("drive", "doc", "file",
+            "EsRejectedExecutionException[rejected execution] mentioned in message only", status);
+      return new BulkResponse(new BulkItemResponse[]{new BulkItemResponse(0, "index", failure)}, 1);
+   }
+}
@@ -0,0 +1,75 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.chadwiki.elasticsearch.river.drive.river;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+/**
+ * Test the glob semantics of includes and excludes rules.
+ * @author laurent
+ */
+public class DriveTitleFilterTest extends TestCase{
+
+   public void testStarMatchesAnySequence(){
+      DriveTitleFilter filter = DriveTitleFilter.compile(Arrays.asList("*.doc"), null);
+      assertTrue(filter.isIndexable("report.doc"));
+      assertTrue(filter.isIndexable(".doc"));
+      assertFalse(filter.isIndexable("report.docx"));
+   }
+
+   public void testQuestionMarkMatchesExactlyOneCharacter(){
+      DriveTitleFilter filter = DriveTitleFilter.compile(Arrays.asList("report-?.txt"), null);
+      assertTrue(filter.isIndexable("report-1.txt"));
+      assertFalse(filter.isIndexable("report-.txt"));
+      assertFalse(filter.isIndexable("report-12.txt"));
+   }
+
+   public void testDotMatchesLiterally(){
+      DriveTitleFilter filter = DriveTitleFilter.compile(Arrays.asList("*.txt"), null);
+      assertTrue(filter.isIndexable("notes.txt"));
+      assertFalse(filter.isIndexable("notesXtxt"));
+   }
+
+   public void testRegexCharactersMatchLiterally(){
+      DriveTitleFilter filter = DriveTitleFilter.compile(Arrays.asList("budget (2014)+[draft]*"), null);
+      assertTrue(filter.isIndexable("budget (2014)+[draft] v2"));
+      assertFalse(filter.isIndexable("budget 2014"));
+   }
+
+   public void testExcludesWinOverIncludes(){
+      DriveTitleFilter filter = DriveTitleFilter.compile(Arrays.asList("*.doc", "*.txt"), Arrays.asList("~*"));
+      assertTrue(filter.isIndexable("notes.txt"));
+      assertFalse(filter.isIndexable("~notes.txt"));
+      assertFalse(filter.isIndexable("notes.pdf"));
+   }
+
+   public void testNoRulesIndexEverything(){
+      DriveTitleFilter filter = DriveTitleFilter.compile(null, Collections.<String>emptyList());
+      assertTrue(filter.isIndexable("anything"));
+      assertTrue(filter.isIndexable(null));
+   }
+
+   public void testNullTitleIsCheckedAsEmpty(){
+      assertFalse(DriveTitleFilter.compile(Arrays.asList("*.doc"), null).isIndexable(null));
+      assertTrue(DriveTitleFilter.compile(Arrays.asList("*"), null).isIndexable(null));
+      assertFalse(DriveTitleFilter.compile(null, Arrays.asList("*")).isIndexable(null));
+   }
+}